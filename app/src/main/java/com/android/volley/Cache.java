@@ -16,15 +16,21 @@
 
 package com.android.volley;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * An interface for a cache keyed by a String with a byte array as data.
  */
 public interface Cache {
     /**
-     * Retrieves an entry from the cache.
+     * Retrieves an entry from the cache. The data of large entries may be returned in
+     * {@link com.android.volley.Cache.Entry#buffer} instead of
+     * {@link com.android.volley.Cache.Entry#data}, to keep it off the managed heap.
      * @param key Cache key
      * @return An {@link com.android.volley.Cache.Entry} or null in the event of a cache miss
      */
@@ -39,7 +45,8 @@ public interface Cache {
 
     /**
      * Performs any potentially long-running actions needed to initialize the cache;
-     * will be called from a worker thread.
+     * will be called from a worker thread. The other methods aren't called until it has
+     * finished, unless the cache is an {@link AsyncInitCache} that allows it.
      */
     public void initialize();
 
@@ -65,9 +72,15 @@ public interface Cache {
      * Data and metadata for an entry returned by the cache.
      */
     public static class Entry {
-        /** The data returned from cache. */
+        /** The data returned from cache, or null if it is held in {@link #buffer}. */
         public byte[] data;
 
+        /**
+         * The data returned from cache in a buffer that may live outside of the managed heap,
+         * such as a direct buffer, or null if it is held in {@link #data}.
+         */
+        public ByteBuffer buffer;
+
         /** ETag for cache coherency. */
         public String etag;
 
@@ -83,6 +96,54 @@ public interface Cache {
         /** Immutable response headers as received from server; must be non-null. */
         public Map<String, String> responseHeaders = Collections.emptyMap();
 
+        /**
+         * Results parsed from the data, keyed by {@link Request#getParsedResultKey()}. Copies of
+         * an entry share them, so caches that keep entries in memory and hand out copies let
+         * later requests skip parsing. Created on first use.
+         */
+        private volatile Map<String, Object> mParsedResults;
+
+        /**
+         * Returns the result parsed from the data by requests with the given parsed result key,
+         * or null if none has been recorded.
+         */
+        public Object getParsedResult(String key) {
+            Map<String, Object> parsedResults = mParsedResults;
+            return parsedResults != null ? parsedResults.get(key) : null;
+        }
+
+        /**
+         * Records the result parsed from the data by requests with the given parsed result key.
+         * The result must be immutable, as it may be shared with later requests.
+         */
+        public void putParsedResult(String key, Object result) {
+            getParsedResults().put(key, result);
+        }
+
+        /**
+         * Returns a copy of this entry with its own response headers, TTLs and so on, sharing
+         * the data and the parsed results.
+         */
+        public Entry copy() {
+            Entry copy = new Entry();
+            copy.data = data;
+            copy.buffer = buffer != null ? buffer.duplicate() : null;
+            copy.etag = etag;
+            copy.serverDate = serverDate;
+            copy.ttl = ttl;
+            copy.softTtl = softTtl;
+            copy.responseHeaders = new HashMap<String, String>(responseHeaders);
+            copy.mParsedResults = getParsedResults();
+            return copy;
+        }
+
+        private synchronized Map<String, Object> getParsedResults() {
+            if (mParsedResults == null) {
+                mParsedResults = new ConcurrentHashMap<String, Object>(4);
+            }
+            return mParsedResults;
+        }
+
         /** True if the entry is expired. */
         public boolean isExpired() {
             return this.ttl < System.currentTimeMillis();
@@ -92,6 +153,35 @@ public interface Cache {
         public boolean refreshNeeded() {
             return this.softTtl < System.currentTimeMillis();
         }
+
+        /** Returns the size of the data in bytes. */
+        public int getDataLength() {
+            if (data != null) {
+                return data.length;
+            }
+            return buffer != null ? buffer.remaining() : 0;
+        }
+
+        /**
+         * Returns the data as a byte array, copying it out of {@link #buffer} if that is where it
+         * is held.
+         */
+        public byte[] getData() {
+            if (data != null || buffer == null) {
+                return data;
+            }
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return bytes;
+        }
+
+        /**
+         * Returns a stream of the data. Unlike {@link #getData()}, this never copies the data
+         * onto the heap.
+         */
+        public InputStream openDataStream() {
+            return new ByteBufferInputStream(buffer != null ? buffer : ByteBuffer.wrap(data));
+        }
     }
 
 }
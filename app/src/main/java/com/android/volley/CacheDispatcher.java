@@ -18,6 +18,8 @@ package com.android.volley;
 
 import android.os.Process;
 
+import org.apache.http.HttpStatus;
+
 import java.util.concurrent.BlockingQueue;
 
 /**
@@ -48,6 +50,9 @@ public class CacheDispatcher extends Thread {
     /** Used for telling us to die. */
     private volatile boolean mQuit = false;
 
+    /** Initializes the cache, shared with any other dispatchers started on it. */
+    private final CacheInitializer mCacheInitializer;
+
     /**
      * Creates a new cache triage dispatcher thread.  You must call {@link #start()}
      * in order to begin processing.
@@ -60,10 +65,21 @@ public class CacheDispatcher extends Thread {
     public CacheDispatcher(
             BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue,
             Cache cache, ResponseDelivery delivery) {
+        this(cacheQueue, networkQueue, cache, delivery, new CacheInitializer(cache));
+    }
+
+    /**
+     * Creates a new cache triage dispatcher thread that leaves initializing the cache to the
+     * given initializer, so that it is only initialized once across dispatchers.
+     */
+    CacheDispatcher(
+            BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue,
+            Cache cache, ResponseDelivery delivery, CacheInitializer cacheInitializer) {
         mCacheQueue = cacheQueue;
         mNetworkQueue = networkQueue;
         mCache = cache;
         mDelivery = delivery;
+        mCacheInitializer = cacheInitializer;
     }
 
     /**
@@ -75,13 +91,62 @@ public class CacheDispatcher extends Thread {
         interrupt();
     }
 
+    /**
+     * Returns how long the cache took to initialize in milliseconds, or -1 if it hasn't finished
+     * initializing yet.
+     */
+    public long getCacheInitializationTimeMs() {
+        return mCacheInitializer.getInitializationTimeMs();
+    }
+
+    /**
+     * Parses a cache entry, reusing the result another request parsed from it already if the
+     * request allows that.
+     */
+    private Response<?> parseCacheEntry(Request<?> request, Cache.Entry entry) {
+        String parsedResultKey = request.getParsedResultKey();
+        if (parsedResultKey != null) {
+            Object parsed = entry.getParsedResult(parsedResultKey);
+            if (parsed != null) {
+                request.addMarker("cache-hit-parse-reused");
+                return Response.success(parsed, entry);
+            }
+        }
+
+        NetworkResponse networkResponse;
+        if (entry.data == null && request.shouldStreamResponse()) {
+            // Read the data where it is instead of copying it onto the heap.
+            networkResponse = new NetworkResponse(HttpStatus.SC_OK,
+                    entry.openDataStream(), entry.responseHeaders, 0);
+        } else {
+            networkResponse = new NetworkResponse(entry.getData(), entry.responseHeaders);
+        }
+        Response<?> response = request.parseNetworkResponse(networkResponse);
+        request.addMarker("cache-hit-parsed");
+        if (parsedResultKey != null && response.isSuccess() && response.result != null) {
+            entry.putParsedResult(parsedResultKey, response.result);
+        }
+        return response;
+    }
+
     @Override
     public void run() {
         if (DEBUG) VolleyLog.v("start new dispatcher");
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
-        // Make a blocking call to initialize the cache.
-        mCache.initialize();
+        // Initialize the cache in the background. Only serve requests from it in the meantime
+        // if it supports that; otherwise wait for it, as initialize() is a blocking call.
+        mCacheInitializer.start();
+        if (!mCacheInitializer.canServeWhileInitializing()) {
+            try {
+                mCacheInitializer.join();
+            } catch (InterruptedException e) {
+                if (mQuit) {
+                    joinCacheInitializer();
+                    return;
+                }
+            }
+        }
 
         while (true) {
             try {
@@ -89,6 +154,9 @@ public class CacheDispatcher extends Thread {
                 // at least one is available.
                 final Request<?> request = mCacheQueue.take();
                 request.addMarker("cache-queue-take");
+                if (mCacheInitializer.getInitializationTimeMs() < 0) {
+                    request.addMarker("cache-initializing");
+                }
 
                 // If the request has been canceled, don't bother dispatching it.
                 if (request.isCanceled()) {
@@ -115,9 +183,7 @@ public class CacheDispatcher extends Thread {
 
                 // We have a cache hit; parse its data for delivery back to the request.
                 request.addMarker("cache-hit");
-                Response<?> response = request.parseNetworkResponse(
-                        new NetworkResponse(entry.data, entry.responseHeaders));
-                request.addMarker("cache-hit-parsed");
+                Response<?> response = parseCacheEntry(request, entry);
 
                 if (!entry.refreshNeeded()) {
                     // Completely unexpired cache hit. Just deliver the response.
@@ -149,10 +215,23 @@ public class CacheDispatcher extends Thread {
             } catch (InterruptedException e) {
                 // We may have been interrupted because it was time to quit.
                 if (mQuit) {
+                    joinCacheInitializer();
                     return;
                 }
                 continue;
             }
         }
     }
+
+    /**
+     * Waits for the cache to finish initializing before this dispatcher exits, so that the
+     * cache is never left initializing with no dispatcher running.
+     */
+    private void joinCacheInitializer() {
+        try {
+            mCacheInitializer.join();
+        } catch (InterruptedException e) {
+            // Quitting anyway.
+        }
+    }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Initializes a cache on a background thread, once no matter how many cache dispatchers are
+ * started on it.
+ */
+class CacheInitializer {
+
+    private static final boolean DEBUG = VolleyLog.DEBUG;
+
+    /** The cache to initialize. */
+    private final Cache mCache;
+
+    /** The thread initializing the cache, or null if it hasn't been started. */
+    private Thread mThread;
+
+    /** How long the cache took to initialize, or -1 while it is still initializing. */
+    private volatile long mInitializationTimeMs = -1;
+
+    public CacheInitializer(Cache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Starts initializing the cache, unless that has been started already.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        final long startTimeMs = SystemClock.elapsedRealtime();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                mCache.initialize();
+                mInitializationTimeMs = SystemClock.elapsedRealtime() - startTimeMs;
+                if (DEBUG) VolleyLog.v("cache initialized in %d ms", mInitializationTimeMs);
+            }
+        }, "VolleyCacheInit");
+        mThread.start();
+    }
+
+    /**
+     * Waits for the cache to finish initializing, if that has been started.
+     */
+    public void join() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Returns whether the cache may be used before it has finished initializing.
+     */
+    public boolean canServeWhileInitializing() {
+        return mCache instanceof AsyncInitCache
+                && ((AsyncInitCache) mCache).canServeWhileInitializing();
+    }
+
+    /**
+     * Returns how long the cache took to initialize in milliseconds, or -1 if it hasn't finished
+     * initializing yet.
+     */
+    public long getInitializationTimeMs() {
+        return mInitializationTimeMs;
+    }
+}
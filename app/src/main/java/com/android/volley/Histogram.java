@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative samples, such as latencies in milliseconds or sizes
+ * in bytes.
+ *
+ * <p>Samples are counted in power-of-two buckets: bucket 0 holds zero, and bucket <code>i</code>
+ * holds values in <code>[2^(i-1), 2^i - 1]</code>. Percentiles are therefore approximate and
+ * are reported as the upper bound of the bucket they fall in.</p>
+ */
+public class Histogram {
+    /** Number of buckets; the last bucket also absorbs anything larger. */
+    public static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Records a single sample. Negative values are recorded as zero.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets.incrementAndGet(getBucket(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    /** Returns the number of samples recorded. */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /** Returns the sum of all samples recorded. */
+    public long getSum() {
+        return mSum.get();
+    }
+
+    /** Returns the largest sample recorded, or 0 if there are none. */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /** Returns the mean of all samples recorded, or 0 if there are none. */
+    public long getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * Returns an upper bound for the given percentile of the recorded samples.
+     * @param percentile A value between 0 and 100
+     */
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= target) {
+                return Math.min(getBucketUpperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Returns a snapshot of the per-bucket sample counts.
+     * @see #getBucketUpperBound(int)
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mBuckets.get(i);
+        }
+        return counts;
+    }
+
+    /** Clears all recorded samples. */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    /**
+     * Returns the largest value counted by the given bucket.
+     */
+    public static long getBucketUpperBound(int bucket) {
+        if (bucket >= BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        return (1L << bucket) - 1;
+    }
+
+    private static int getBucket(long value) {
+        int bucket = 64 - Long.numberOfLeadingZeros(value);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%d p50=%d p90=%d p99=%d max=%d", getCount(),
+                getMean(), getPercentile(50), getPercentile(90), getPercentile(99), getMax());
+    }
+}
@@ -22,6 +22,12 @@ import android.os.Build;
 import android.os.Process;
 import android.os.SystemClock;
 
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.concurrent.BlockingQueue;
 
 /**
@@ -106,6 +112,14 @@ public class NetworkDispatcher extends Thread {
                     continue;
                 }
 
+                // If the request missed its deadline while waiting, fail it without
+                // performing the network request.
+                if (request.hasDeadlinePassed()) {
+                    request.addMarker("network-discard-deadline");
+                    mDelivery.postError(request, new TimeoutError());
+                    continue;
+                }
+
                 addTrafficStatsTag(request);
 
                 // Perform the network request.
@@ -119,6 +133,17 @@ public class NetworkDispatcher extends Thread {
                     continue;
                 }
 
+                // A streamed body is only read while it is parsed, so a failure to read it is
+                // retried here, under the request's retry policy, rather than by the network.
+                while (networkResponse.bodyStream != null
+                        && !deliverStreamedResponse(request, networkResponse)) {
+                    networkResponse = mNetwork.performRequest(request);
+                    request.addMarker("network-http-complete");
+                }
+                if (networkResponse.bodyStream != null) {
+                    continue;
+                }
+
                 // Parse the response here on the worker thread.
                 Response<?> response = request.parseNetworkResponse(networkResponse);
                 request.addMarker("network-parse-complete");
@@ -141,6 +166,165 @@ public class NetworkDispatcher extends Thread {
                 VolleyError volleyError = new VolleyError(e);
                 volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
                 mDelivery.postError(request, volleyError);
+            } finally {
+                // Let the next request to this host through.
+                if (mQueue instanceof NetworkQueue) {
+                    ((NetworkQueue) mQueue).release(request);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a streamed response while its body is copied into the cache, if applicable, and
+     * posts it. The rest of the body is only read and committed to the cache after the response
+     * has been posted, so that delivery doesn't wait for it. The entry is only committed if
+     * parsing succeeded and the whole body was read.
+     *
+     * <p>If the parser reports that the body could not be downloaded, with a
+     * {@link NetworkError} or {@link TimeoutError}, nothing is posted and false is returned, so
+     * that the request can be performed again.</p>
+     * @throws VolleyError if the body could not be downloaded and the request's retry policy
+     *     doesn't allow another attempt
+     */
+    private boolean deliverStreamedResponse(Request<?> request, NetworkResponse networkResponse)
+            throws VolleyError {
+        StreamingCache.Writer writer = openCacheWriter(request, networkResponse);
+        TeeInputStream in = new TeeInputStream(networkResponse.bodyStream,
+                writer != null ? writer.getOutputStream() : null);
+        boolean committed = false;
+        try {
+            Response<?> response = request.parseNetworkResponse(new NetworkResponse(
+                    networkResponse.statusCode, in, networkResponse.headers,
+                    networkResponse.networkTimeMs));
+            request.addMarker("network-parse-complete");
+            if (!response.isSuccess() && (response.error instanceof NetworkError
+                    || response.error instanceof TimeoutError)) {
+                request.getRetryPolicy().retry(response.error);
+                request.addMarker("network-body-retry");
+                return false;
+            }
+            if (writer != null && response.cacheEntry != null) {
+                request.addMarker("network-cache-write-deferred");
+            }
+
+            // Post the response back. The request may be finished from here on, so no more
+            // markers may be added to it.
+            request.markDelivered();
+            mDelivery.postResponse(request, response);
+
+            if (writer != null && response.cacheEntry != null) {
+                // The parser may not have read the whole body, but the cache needs all of it.
+                try {
+                    in.drain();
+                } catch (IOException e) {
+                    // The response has already been delivered; only the cache write is lost.
+                    VolleyLog.d("Failed to read the rest of %s: %s", request.getUrl(),
+                            e.toString());
+                    return true;
+                }
+                if (!in.hasWriteFailed()) {
+                    writer.commit(response.cacheEntry);
+                    committed = true;
+                }
+            }
+            return true;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                VolleyLog.d("Failed to close the response of %s", request.getUrl());
+            }
+            if (writer != null && !committed) {
+                writer.abort();
+            }
+        }
+    }
+
+    /**
+     * Opens a writer for the body of a streamed response, if it should be cached and the cache
+     * can write entries as they are received. The entry header is taken from the response
+     * headers, so that it can be written ahead of the body.
+     */
+    private StreamingCache.Writer openCacheWriter(Request<?> request,
+            NetworkResponse networkResponse) {
+        if (!request.shouldCache() || !(mCache instanceof StreamingCache)) {
+            return null;
+        }
+        Cache.Entry header = HttpHeaderParser.parseCacheHeaders(networkResponse);
+        if (header == null) {
+            return null;
+        }
+        return ((StreamingCache) mCache).openWriter(request.getCacheKey(), header);
+    }
+
+    /**
+     * Copies everything read from a stream to an output stream. Failures to write are recorded
+     * rather than thrown, so that they don't interrupt the reader.
+     */
+    private static class TeeInputStream extends FilterInputStream {
+        private final OutputStream mOut;
+        private final byte[] mSingleByte = new byte[1];
+        private boolean mWriteFailed = false;
+
+        private TeeInputStream(InputStream in, OutputStream out) {
+            super(in);
+            mOut = out;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) {
+                mSingleByte[0] = (byte) result;
+                write(mSingleByte, 0, 1);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int result = super.read(buffer, offset, count);
+            if (result > 0) {
+                write(buffer, offset, result);
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // Read instead, so that skipped bytes are copied as well.
+            byte[] buffer = new byte[(int) Math.min(count, 4096)];
+            int read = read(buffer, 0, buffer.length);
+            return read == -1 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /** Reads the rest of the stream. */
+        public void drain() throws IOException {
+            byte[] buffer = new byte[4096];
+            while (read(buffer, 0, buffer.length) != -1) {
+                // Keep reading.
+            }
+        }
+
+        /** Returns true if any of the bytes read could not be written. */
+        public boolean hasWriteFailed() {
+            return mWriteFailed;
+        }
+
+        private void write(byte[] buffer, int offset, int count) {
+            if (mOut == null || mWriteFailed) {
+                return;
+            }
+            try {
+                mOut.write(buffer, offset, count);
+            } catch (IOException e) {
+                mWriteFailed = true;
             }
         }
     }
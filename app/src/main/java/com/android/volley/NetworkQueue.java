@@ -0,0 +1,636 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.SystemClock;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The queue of requests going out to the network.
+ *
+ * <p>Requests are grouped by the host of their URL. At most
+ * {@link #getMaxRequestsPerHost()} requests to a single host are handed out to
+ * {@link NetworkDispatcher}s at any time, so that a burst of requests to one slow host cannot
+ * occupy every dispatcher. The limit only applies while requests to more than one host are
+ * waiting; with only one, there is no other host to keep dispatchers free for. Between hosts whose next requests have the same effective priority,
+ * requests are handed out round-robin; within a priority, requests to a host are handed out in
+ * sequence order.</p>
+ *
+ * <p>The effective priority of a waiting request rises by one level for every
+ * {@link #getAgingIntervalMs()} it has spent in the queue, up to {@link Request.Priority#HIGH},
+ * so that low priority requests cannot starve under sustained load. Requests with a
+ * {@link Request#setDeadline(long) deadline} are handed out earliest-deadline-first once the
+ * deadline is close, and as soon as it has passed, regardless of host limits, so that the
+ * dispatcher can fail them without going to the network.</p>
+ *
+ * <p>{@link Request.Priority#IDLE} requests do not age, and are only handed out while no other
+ * request is waiting, and then at most {@link #MAX_ACTIVE_IDLE_REQUESTS} at a time, so that
+ * speculative work backs off as soon as interactive requests come in.</p>
+ *
+ * <p>Every request returned by {@link #take()} or {@link #poll()} holds a slot for its host until
+ * {@link #release(Request)} is called for it.</p>
+ */
+public class NetworkQueue extends AbstractQueue<Request<?>>
+        implements BlockingQueue<Request<?>> {
+
+    /** Default time a request waits before its effective priority is raised by one level. */
+    public static final long DEFAULT_AGING_INTERVAL_MS = 2000;
+
+    /** How close to its deadline a request must be to be handed out ahead of everything else. */
+    private static final long DEADLINE_URGENCY_MS = 1000;
+
+    /** Highest effective priority a request can reach through aging. */
+    private static final int MAX_AGED_PRIORITY = Request.Priority.HIGH.ordinal();
+
+    private static final int PRIORITY_COUNT = Request.Priority.values().length;
+
+    private static final int IDLE = Request.Priority.IDLE.ordinal();
+
+    /** Maximum number of idle priority requests handed out at any time. */
+    public static final int MAX_ACTIVE_IDLE_REQUESTS = 1;
+
+    /** Orders queued entries of the same priority by sequence number. */
+    private static final Comparator<Entry> SEQUENCE_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    };
+
+    /** Orders entries with a deadline earliest-deadline-first. */
+    private static final Comparator<Entry> DEADLINE_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.deadlineMs != rhs.deadlineMs) {
+                return lhs.deadlineMs < rhs.deadlineMs ? -1 : 1;
+            }
+            return SEQUENCE_COMPARATOR.compare(lhs, rhs);
+        }
+    };
+
+    /** Hosts with queued or active requests, in round-robin service order. */
+    private final LinkedHashMap<String, Host> mHosts = new LinkedHashMap<String, Host>();
+
+    /** Time spent waiting in this queue, by host. */
+    private final Map<String, Histogram> mWaitTimes = new HashMap<String, Histogram>();
+
+    /** Queued requests that have a deadline, earliest deadline first. */
+    private final TreeSet<Entry> mDeadlines = new TreeSet<Entry>(DEADLINE_COMPARATOR);
+
+    /** Number of requests currently waiting in this queue. */
+    private int mSize = 0;
+
+    /** Number of idle priority requests currently waiting in this queue. */
+    private int mIdleSize = 0;
+
+    /** Idle priority requests that have been handed out and not released yet. */
+    private final List<Request<?>> mActiveIdleRequests = new ArrayList<Request<?>>();
+
+    /** Time a request waits before its effective priority is raised by one level. */
+    private long mAgingIntervalMs = DEFAULT_AGING_INTERVAL_MS;
+
+    /** Maximum number of requests handed out for a single host at any time. */
+    private int mMaxRequestsPerHost;
+
+    /**
+     * @param maxRequestsPerHost The maximum number of requests to a single host that may be
+     *        processed concurrently
+     */
+    public NetworkQueue(int maxRequestsPerHost) {
+        setMaxRequestsPerHost(maxRequestsPerHost);
+    }
+
+    /**
+     * Sets the maximum number of requests to a single host that may be processed concurrently.
+     */
+    public synchronized void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        if (maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("maxRequestsPerHost < 1: " + maxRequestsPerHost);
+        }
+        mMaxRequestsPerHost = maxRequestsPerHost;
+        notifyAll();
+    }
+
+    /**
+     * Returns the maximum number of requests to a single host that may be processed concurrently.
+     */
+    public synchronized int getMaxRequestsPerHost() {
+        return mMaxRequestsPerHost;
+    }
+
+    /**
+     * Sets how long a request waits before its effective priority is raised by one level, or
+     * 0 to disable aging.
+     */
+    public synchronized void setAgingIntervalMs(long agingIntervalMs) {
+        mAgingIntervalMs = agingIntervalMs;
+        notifyAll();
+    }
+
+    /**
+     * Returns how long a request waits before its effective priority is raised by one level.
+     */
+    public synchronized long getAgingIntervalMs() {
+        return mAgingIntervalMs;
+    }
+
+    /**
+     * Returns the number of requests to the given host that are currently being processed.
+     */
+    public synchronized int getActiveCount(String host) {
+        Host state = mHosts.get(hostKey(host));
+        return state == null ? 0 : state.active;
+    }
+
+    /**
+     * Returns the distribution of time, in milliseconds, that requests to the given host have
+     * spent waiting in this queue, or null if no request to that host has been dispatched yet.
+     */
+    public synchronized Histogram getQueueWaitTimes(String host) {
+        return mWaitTimes.get(hostKey(host));
+    }
+
+    /**
+     * Returns a snapshot of the queue wait time distributions of all hosts seen so far.
+     */
+    public synchronized Map<String, Histogram> getQueueWaitTimes() {
+        return new HashMap<String, Histogram>(mWaitTimes);
+    }
+
+    /**
+     * Releases the host slot held by a request returned from this queue. Must be called exactly
+     * once for each such request when its network processing is done.
+     */
+    public synchronized void release(Request<?> request) {
+        String key = hostKey(request.getHost());
+        Host host = mHosts.get(key);
+        if (host == null || host.active == 0) {
+            return;
+        }
+        host.active--;
+        for (int i = 0; i < mActiveIdleRequests.size(); i++) {
+            if (mActiveIdleRequests.get(i) == request) {
+                mActiveIdleRequests.remove(i);
+                break;
+            }
+        }
+        removeIfIdle(key, host);
+        notifyAll();
+    }
+
+    /**
+     * Moves a queued request to its place in line for a new priority, keeping the time it has
+     * already spent waiting.
+     *
+     * @return True if the request was queued here, false otherwise
+     */
+    synchronized boolean reprioritize(Request<?> request, Request.Priority priority) {
+        Host host = mHosts.get(hostKey(request.getHost()));
+        Entry entry = host == null ? null : host.find(request);
+        if (entry == null) {
+            return false;
+        }
+        unqueue(host, entry);
+        request.setPriorityInternal(priority);
+        enqueue(host, new Entry(request, entry.enqueuedMs));
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean offer(Request<?> request) {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        String key = hostKey(request.getHost());
+        Host host = mHosts.get(key);
+        if (host == null) {
+            host = new Host();
+            mHosts.put(key, host);
+        }
+        enqueue(host, new Entry(request, SystemClock.elapsedRealtime()));
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public void put(Request<?> request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(Request<?> request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    @Override
+    public synchronized Request<?> take() throws InterruptedException {
+        Request<?> request;
+        while ((request = dequeue()) == null) {
+            long waitMs = getMsUntilNextDeadline();
+            if (waitMs > 0) {
+                wait(waitMs);
+            } else {
+                wait();
+            }
+        }
+        return request;
+    }
+
+    @Override
+    public synchronized Request<?> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remainingNanos = unit.toNanos(timeout);
+        long deadlineNanos = System.nanoTime() + remainingNanos;
+        Request<?> request;
+        while ((request = dequeue()) == null) {
+            if (remainingNanos <= 0) {
+                return null;
+            }
+            long waitMs = getMsUntilNextDeadline();
+            if (waitMs > 0) {
+                remainingNanos = Math.min(remainingNanos, TimeUnit.MILLISECONDS.toNanos(waitMs));
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+            remainingNanos = deadlineNanos - System.nanoTime();
+        }
+        return request;
+    }
+
+    @Override
+    public synchronized Request<?> poll() {
+        return dequeue();
+    }
+
+    @Override
+    public synchronized Request<?> peek() {
+        Entry entry = findNext(SystemClock.elapsedRealtime());
+        return entry == null ? null : entry.request;
+    }
+
+    @Override
+    public synchronized int size() {
+        return mSize;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public synchronized boolean remove(Object o) {
+        if (!(o instanceof Request)) {
+            return false;
+        }
+        Request<?> request = (Request<?>) o;
+        String key = hostKey(request.getHost());
+        Host host = mHosts.get(key);
+        Entry entry = host == null ? null : host.find(request);
+        if (entry == null) {
+            return false;
+        }
+        removeEntry(key, host, entry);
+        // Other hosts may no longer be held to the per-host limit.
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() {
+        drainTo(new ArrayList<Request<?>>());
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes up to <code>maxElements</code> queued requests regardless of host limits. Drained
+     * requests do not hold a host slot.
+     */
+    @Override
+    public synchronized int drainTo(Collection<? super Request<?>> c, int maxElements) {
+        int drained = 0;
+        Iterator<Map.Entry<String, Host>> hosts = mHosts.entrySet().iterator();
+        while (hosts.hasNext() && drained < maxElements) {
+            Host host = hosts.next().getValue();
+            for (int i = PRIORITY_COUNT - 1; i >= 0 && drained < maxElements; i--) {
+                while (!host.pending[i].isEmpty() && drained < maxElements) {
+                    Entry entry = host.pending[i].peek();
+                    unqueue(host, entry);
+                    c.add(entry.request);
+                    drained++;
+                }
+            }
+            if (host.isEmpty() && host.active == 0) {
+                hosts.remove();
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queued requests, in no particular order.
+     */
+    @Override
+    public synchronized Iterator<Request<?>> iterator() {
+        final List<Request<?>> snapshot = new ArrayList<Request<?>>(mSize);
+        for (Host host : mHosts.values()) {
+            for (PriorityQueue<Entry> pending : host.pending) {
+                for (Entry entry : pending) {
+                    snapshot.add(entry.request);
+                }
+            }
+        }
+        final Iterator<Request<?>> delegate = snapshot.iterator();
+        return new Iterator<Request<?>>() {
+            private Request<?> mLast;
+
+            @Override
+            public boolean hasNext() {
+                return delegate.hasNext();
+            }
+
+            @Override
+            public Request<?> next() {
+                mLast = delegate.next();
+                return mLast;
+            }
+
+            @Override
+            public void remove() {
+                if (mLast == null) {
+                    throw new IllegalStateException();
+                }
+                NetworkQueue.this.remove(mLast);
+                mLast = null;
+            }
+        };
+    }
+
+    /**
+     * Picks the request to hand out next, or returns null if there is none that may be handed
+     * out right now.
+     */
+    private Entry findNext(long now) {
+        int maxRequestsPerHost = isMoreThanOneHostWaiting() ? mMaxRequestsPerHost
+                : Integer.MAX_VALUE;
+
+        // Requests whose deadline has passed go first, and do not need a slot to be failed.
+        // Requests whose deadline is close go next, earliest deadline first.
+        for (Entry entry : mDeadlines) {
+            if (entry.request.hasDeadlinePassed(now)) {
+                return entry;
+            }
+            if (entry.deadlineMs - now > DEADLINE_URGENCY_MS) {
+                break;
+            }
+            if (mHosts.get(entry.hostKey).active < maxRequestsPerHost) {
+                return entry;
+            }
+        }
+
+        // Otherwise, serve the first host in round-robin order whose best request has the
+        // highest effective priority. Idle requests only go while nothing else is waiting.
+        boolean idleAllowed = mSize == mIdleSize
+                && mActiveIdleRequests.size() < MAX_ACTIVE_IDLE_REQUESTS;
+        int lowest = idleAllowed ? IDLE : IDLE + 1;
+        Entry best = null;
+        int bestPriority = -1;
+        for (Host host : mHosts.values()) {
+            if (host.active >= maxRequestsPerHost) {
+                continue;
+            }
+            for (int i = PRIORITY_COUNT - 1; i >= lowest; i--) {
+                Entry head = host.pending[i].peek();
+                if (head == null) {
+                    continue;
+                }
+                int priority = getEffectivePriority(head, now);
+                if (priority > bestPriority
+                        || (priority == bestPriority && best.hostKey.equals(head.hostKey)
+                                && head.enqueuedMs < best.enqueuedMs)) {
+                    best = head;
+                    bestPriority = priority;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns true if requests other than idle ones are waiting for more than one host.
+     */
+    private boolean isMoreThanOneHostWaiting() {
+        int waiting = 0;
+        for (Host host : mHosts.values()) {
+            if (host.hasWaiting() && ++waiting > 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns how long until the earliest queued deadline becomes urgent or passes, at least
+     * 1 ms, or 0 if no queued request has a deadline. Dispatchers blocked on host limits wake up
+     * by then.
+     */
+    private long getMsUntilNextDeadline() {
+        if (mDeadlines.isEmpty()) {
+            return 0;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long deadline = mDeadlines.first().deadlineMs;
+        long next = deadline - DEADLINE_URGENCY_MS > now ? deadline - DEADLINE_URGENCY_MS : deadline;
+        return Math.max(1, next - now);
+    }
+
+    /**
+     * Returns the priority of a queued request, raised by one level for every aging interval it
+     * has spent waiting.
+     */
+    private int getEffectivePriority(Entry entry, long now) {
+        int priority = entry.priority;
+        if (mAgingIntervalMs <= 0 || priority == IDLE || priority >= MAX_AGED_PRIORITY) {
+            return priority;
+        }
+        long levels = (now - entry.enqueuedMs) / mAgingIntervalMs;
+        return (int) Math.min(MAX_AGED_PRIORITY, priority + levels);
+    }
+
+    /**
+     * Removes the next request to dispatch and takes a slot for its host, or returns null if no
+     * host with queued requests has a free slot.
+     */
+    private Request<?> dequeue() {
+        long now = SystemClock.elapsedRealtime();
+        Entry entry = findNext(now);
+        if (entry == null) {
+            return null;
+        }
+        Host host = mHosts.get(entry.hostKey);
+        unqueue(host, entry);
+        host.active++;
+        if (entry.priority == IDLE) {
+            mActiveIdleRequests.add(entry.request);
+        }
+        if (mIdleSize > 0 && mSize == mIdleSize) {
+            // Only idle requests are left; let other waiting dispatchers pick them up.
+            notifyAll();
+        } else if (!host.hasWaiting()) {
+            // Other hosts may no longer be held to the per-host limit.
+            notifyAll();
+        }
+
+        // Move the host to the back of the line.
+        mHosts.remove(entry.hostKey);
+        mHosts.put(entry.hostKey, host);
+
+        Histogram waitTimes = mWaitTimes.get(entry.hostKey);
+        if (waitTimes == null) {
+            waitTimes = new Histogram();
+            mWaitTimes.put(entry.hostKey, waitTimes);
+        }
+        waitTimes.record(now - entry.enqueuedMs);
+        return entry.request;
+    }
+
+    private void removeEntry(String key, Host host, Entry entry) {
+        unqueue(host, entry);
+        removeIfIdle(key, host);
+    }
+
+    private void enqueue(Host host, Entry entry) {
+        host.add(entry);
+        if (entry.deadlineMs != 0) {
+            mDeadlines.add(entry);
+        }
+        mSize++;
+        if (entry.priority == IDLE) {
+            mIdleSize++;
+        }
+    }
+
+    private void unqueue(Host host, Entry entry) {
+        host.remove(entry);
+        mDeadlines.remove(entry);
+        mSize--;
+        if (entry.priority == IDLE) {
+            mIdleSize--;
+        }
+    }
+
+    private void removeIfIdle(String key, Host host) {
+        if (host.isEmpty() && host.active == 0) {
+            mHosts.remove(key);
+        }
+    }
+
+    private static String hostKey(String host) {
+        return host == null ? "" : host;
+    }
+
+    /** Queue state for a single host. */
+    private static class Host {
+        /** Requests waiting to be dispatched, by priority ordinal. */
+        @SuppressWarnings("unchecked")
+        final PriorityQueue<Entry>[] pending = new PriorityQueue[PRIORITY_COUNT];
+
+        /** Number of requests currently being processed. */
+        int active;
+
+        Host() {
+            for (int i = 0; i < PRIORITY_COUNT; i++) {
+                pending[i] = new PriorityQueue<Entry>(11, SEQUENCE_COMPARATOR);
+            }
+        }
+
+        void add(Entry entry) {
+            pending[entry.priority].add(entry);
+        }
+
+        void remove(Entry entry) {
+            pending[entry.priority].remove(entry);
+        }
+
+        Entry find(Request<?> request) {
+            for (PriorityQueue<Entry> queue : pending) {
+                for (Entry entry : queue) {
+                    if (entry.request == request) {
+                        return entry;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /** Returns true if requests other than idle ones are waiting. */
+        boolean hasWaiting() {
+            for (int i = IDLE + 1; i < PRIORITY_COUNT; i++) {
+                if (!pending[i].isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean isEmpty() {
+            for (PriorityQueue<Entry> queue : pending) {
+                if (!queue.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A queued request, with the scheduling attributes it had when it was queued.
+     */
+    private static class Entry {
+        final Request<?> request;
+        final String hostKey;
+        final int sequence;
+        final int priority;
+        final long deadlineMs;
+        final long enqueuedMs;
+
+        Entry(Request<?> request, long enqueuedMs) {
+            this.request = request;
+            this.hostKey = hostKey(request.getHost());
+            this.sequence = request.getSequence();
+            this.priority = request.getPriority().ordinal();
+            this.deadlineMs = request.getDeadline();
+            this.enqueuedMs = enqueuedMs;
+        }
+    }
+}
@@ -19,6 +19,7 @@ package com.android.volley;
 
 import org.apache.http.HttpStatus;
 
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.Map;
 
@@ -36,8 +37,27 @@ public class NetworkResponse {
      */
     public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
             boolean notModified, long networkTimeMs) {
+        this(statusCode, data, null, headers, notModified, networkTimeMs);
+    }
+
+    /**
+     * Creates a new network response whose body is read from a stream.
+     * @param statusCode the HTTP status code
+     * @param bodyStream Stream of the response body; closing it releases the connection
+     * @param headers Headers returned with this response, or null for none
+     * @param networkTimeMs Time to receive the response headers
+     * @see Request#setStreamResponse(boolean)
+     */
+    public NetworkResponse(int statusCode, InputStream bodyStream, Map<String, String> headers,
+            long networkTimeMs) {
+        this(statusCode, null, bodyStream, headers, false, networkTimeMs);
+    }
+
+    private NetworkResponse(int statusCode, byte[] data, InputStream bodyStream,
+            Map<String, String> headers, boolean notModified, long networkTimeMs) {
         this.statusCode = statusCode;
         this.data = data;
+        this.bodyStream = bodyStream;
         this.headers = headers;
         this.notModified = notModified;
         this.networkTimeMs = networkTimeMs;
@@ -59,9 +79,12 @@ public class NetworkResponse {
     /** The HTTP status code. */
     public final int statusCode;
 
-    /** Raw data from this response. */
+    /** Raw data from this response, or null if the body is streamed. */
     public final byte[] data;
 
+    /** Stream of the body if it is streamed, or null. */
+    public final InputStream bodyStream;
+
     /** Response headers. */
     public final Map<String, String> headers;
 
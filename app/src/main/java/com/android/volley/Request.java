@@ -69,6 +69,9 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** URL of this request. */
     private final String mUrl;
 
+    /** Host component of the URL of this request, or null if there is none. */
+    private final String mHost;
+
     /** Default tag for {@link android.net.TrafficStats}. */
     private final int mDefaultTrafficStatsTag;
 
@@ -84,9 +87,18 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** Whether or not responses to this request should be cached. */
     private boolean mShouldCache = true;
 
+    /** Whether or not successful network responses should be parsed from a stream. */
+    private boolean mStreamResponse = false;
+
     /** Whether or not this request has been canceled. */
     private boolean mCanceled = false;
 
+    /** The priority of this request. */
+    private volatile Priority mPriority = Priority.NORMAL;
+
+    /** Time by which this request must be dispatched, or 0 for none. */
+    private long mDeadlineMs = 0;
+
     /** Whether or not a response has been delivered for this request yet. */
     private boolean mResponseDelivered = false;
 
@@ -134,7 +146,8 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         mErrorListener = listener;
         setRetryPolicy(new DefaultRetryPolicy());
 
-        mDefaultTrafficStatsTag = findDefaultTrafficStatsTag(url);
+        mHost = findHost(url);
+        mDefaultTrafficStatsTag = mHost != null ? mHost.hashCode() : 0;
     }
 
     /**
@@ -178,19 +191,24 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     }
 
     /**
-     * @return The hashcode of the URL's host component, or 0 if there is none.
+     * Returns the host component of this request's URL, or null if there is none. Used by
+     * {@link NetworkQueue} to limit concurrent requests per host.
+     */
+    public String getHost() {
+        return mHost;
+    }
+
+    /**
+     * @return The URL's host component, or null if there is none.
      */
-    private static int findDefaultTrafficStatsTag(String url) {
+    private static String findHost(String url) {
         if (!TextUtils.isEmpty(url)) {
             Uri uri = Uri.parse(url);
             if (uri != null) {
-                String host = uri.getHost();
-                if (host != null) {
-                    return host.hashCode();
-                }
+                return uri.getHost();
             }
         }
-        return 0;
+        return null;
     }
 
     /**
@@ -294,6 +312,16 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return getUrl();
     }
 
+    /**
+     * Returns a key identifying how this request parses responses, if its parsed results are
+     * immutable and may be shared with other requests that parse the same cache entry the same
+     * way. Cache hits on entries that are kept in memory then skip parsing. Returns null by
+     * default, so that every request parses its own result.
+     */
+    public String getParsedResultKey() {
+        return null;
+    }
+
     /**
      * Annotates this request with an entry retrieved for it from cache.
      * Used for cache coherency support.
@@ -314,9 +342,15 @@ public abstract class Request<T> implements Comparable<Request<T>> {
 
     /**
      * Mark this request as canceled.  No callback will be delivered.
+     *
+     * <p>If the request is still waiting in one of its queue's dispatch queues, it is removed
+     * and finished right away.</p>
      */
     public void cancel() {
         mCanceled = true;
+        if (mRequestQueue != null) {
+            mRequestQueue.discardIfQueued(this);
+        }
     }
 
     /**
@@ -326,6 +360,45 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mCanceled;
     }
 
+    /**
+     * Sets the time, in the {@link SystemClock#elapsedRealtime()} time base, by which this
+     * request must be sent to the network, or 0 for none. Requests close to their deadline are
+     * dispatched ahead of other requests, and requests that miss it fail with a
+     * {@link TimeoutError} without going to the network. Must be set before the request is added
+     * to a {@link RequestQueue}.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setDeadline(long deadlineMs) {
+        mDeadlineMs = deadlineMs;
+        return this;
+    }
+
+    /**
+     * Returns the deadline of this request, or 0 if it has none.
+     * @see #setDeadline(long)
+     */
+    public long getDeadline() {
+        return mDeadlineMs;
+    }
+
+    /**
+     * Returns true if this request has a deadline and it has passed.
+     */
+    public boolean hasDeadlinePassed() {
+        return hasDeadlinePassed(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Returns true if this request has a deadline and it has passed at the given time, as
+     * measured by {@link SystemClock#elapsedRealtime()}. A deadline passes once it is reached.
+     * {@link NetworkQueue} uses this too, so that a request it hands out as past its deadline is
+     * also failed as such by the dispatcher.
+     */
+    boolean hasDeadlinePassed(long nowMs) {
+        return mDeadlineMs != 0 && mDeadlineMs <= nowMs;
+    }
+
     /**
      * Returns a list of extra HTTP headers to go along with this request. Can
      * throw {@link AuthFailureError} as authentication may be required to
@@ -486,11 +559,38 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mShouldCache;
     }
 
+    /**
+     * Set whether or not successful network responses to this request should be streamed. A
+     * streamed response is passed to {@link #parseNetworkResponse(NetworkResponse)} with a null
+     * {@link NetworkResponse#data} and a {@link NetworkResponse#bodyStream} that reads the body
+     * from the connection as it arrives, while it is also written to the cache. Cache hits are
+     * streamed if the cache holds their data in {@link Cache.Entry#buffer}. Error responses are
+     * never streamed.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public final Request<?> setStreamResponse(boolean streamResponse) {
+        mStreamResponse = streamResponse;
+        return this;
+    }
+
+    /**
+     * Returns true if successful network responses to this request should be streamed.
+     */
+    public final boolean shouldStreamResponse() {
+        return mStreamResponse;
+    }
+
     /**
      * Priority values.  Requests will be processed from higher priorities to
      * lower priorities, in FIFO order.
      */
     public enum Priority {
+        /**
+         * Speculative work such as prefetching. Idle requests are only sent to the network while
+         * no other request is waiting, and never gain priority from waiting themselves.
+         */
+        IDLE,
         LOW,
         NORMAL,
         HIGH,
@@ -501,7 +601,35 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * Returns the {@link com.android.volley.Request.Priority} of this request; {@link com.android.volley.Request.Priority#NORMAL} by default.
      */
     public Priority getPriority() {
-        return Priority.NORMAL;
+        return mPriority;
+    }
+
+    /**
+     * Sets the {@link com.android.volley.Request.Priority} of this request. If the request is
+     * already waiting in a {@link RequestQueue}, it is moved to its new place in line, so this
+     * can be used to promote or demote requests while they are in flight. Has no effect on
+     * subclasses that override {@link #getPriority()}.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setPriority(Priority priority) {
+        if (priority == null) {
+            throw new IllegalArgumentException("Priority must not be null");
+        }
+        if (mRequestQueue != null) {
+            mRequestQueue.reprioritize(this, priority);
+        } else {
+            mPriority = priority;
+        }
+        return this;
+    }
+
+    /**
+     * Updates the priority field only. Used by {@link RequestQueue} and {@link NetworkQueue}
+     * while the request is out of any priority-ordered queue.
+     */
+    void setPriorityInternal(Priority priority) {
+        mPriority = priority;
     }
 
     /**
@@ -19,9 +19,11 @@ package com.android.volley;
 import android.os.Handler;
 import android.os.Looper;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
@@ -65,8 +67,7 @@ public class RequestQueue {
         new PriorityBlockingQueue<Request<?>>();
 
     /** The queue of requests that are actually going out to the network. */
-    private final PriorityBlockingQueue<Request<?>> mNetworkQueue =
-        new PriorityBlockingQueue<Request<?>>();
+    private final NetworkQueue mNetworkQueue;
 
     /** Number of network request dispatcher threads to start. */
     private static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
@@ -86,6 +87,9 @@ public class RequestQueue {
     /** The cache dispatcher. */
     private CacheDispatcher mCacheDispatcher;
 
+    /** Initializes the cache once for every cache dispatcher started on it. */
+    private final CacheInitializer mCacheInitializer;
+
     /**
      * Creates the worker pool. Processing will not begin until {@link #start()} is called.
      *
@@ -100,6 +104,9 @@ public class RequestQueue {
         mNetwork = network;
         mDispatchers = new NetworkDispatcher[threadPoolSize];
         mDelivery = delivery;
+        mCacheInitializer = new CacheInitializer(cache);
+        // Keep a dispatcher free for other hosts by default; see setMaxRequestsPerHost(int).
+        mNetworkQueue = new NetworkQueue(threadPoolSize > 1 ? threadPoolSize - 1 : 1);
     }
 
     /**
@@ -130,7 +137,8 @@ public class RequestQueue {
     public void start() {
         stop();  // Make sure any currently running dispatchers are stopped.
         // Create the cache dispatcher and start it.
-        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
+        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery,
+                mCacheInitializer);
         mCacheDispatcher.start();
 
         // Create network dispatchers (and corresponding threads) up to the pool size.
@@ -143,7 +151,8 @@ public class RequestQueue {
     }
 
     /**
-     * Stops the cache and network dispatchers.
+     * Stops the cache and network dispatchers, and the cache's own threads if it is a
+     * {@link StoppableCache}.
      */
     public void stop() {
         if (mCacheDispatcher != null) {
@@ -154,6 +163,9 @@ public class RequestQueue {
                 mDispatchers[i].quit();
             }
         }
+        if (mCache instanceof StoppableCache) {
+            ((StoppableCache) mCache).stop();
+        }
     }
 
     /**
@@ -170,6 +182,40 @@ public class RequestQueue {
         return mCache;
     }
 
+    /**
+     * Returns how long the cache took to initialize in milliseconds, or -1 if it hasn't finished
+     * initializing yet or the queue hasn't been started. Requests served before then are marked
+     * with <code>cache-initializing</code>.
+     */
+    public long getCacheInitializationTimeMs() {
+        return mCacheInitializer.getInitializationTimeMs();
+    }
+
+    /**
+     * Sets the maximum number of requests to a single host that may be processed by the
+     * network dispatchers at the same time, while requests to other hosts are waiting. By
+     * default, this is one less than the number of dispatchers, if there is more than one.
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        mNetworkQueue.setMaxRequestsPerHost(maxRequestsPerHost);
+    }
+
+    /**
+     * Sets how long a request waits for a network dispatcher before its effective priority is
+     * raised by one level, or 0 to disable priority aging.
+     */
+    public void setAgingIntervalMs(long agingIntervalMs) {
+        mNetworkQueue.setAgingIntervalMs(agingIntervalMs);
+    }
+
+    /**
+     * Returns the distribution of time, in milliseconds, that requests have spent waiting for a
+     * network dispatcher, keyed by host.
+     */
+    public Map<String, Histogram> getNetworkQueueWaitTimes() {
+        return mNetworkQueue.getQueueWaitTimes();
+    }
+
     /**
      * A simple predicate or filter interface for Requests, for use by
      * {@link com.android.volley.RequestQueue#cancelAll(com.android.volley.RequestQueue.RequestFilter)}.
@@ -183,13 +229,18 @@ public class RequestQueue {
      * @param filter The filtering function to use
      */
     public void cancelAll(RequestFilter filter) {
+        // Cancel outside of the lock, as canceling a queued request finishes it right away.
+        List<Request<?>> canceled = new ArrayList<Request<?>>();
         synchronized (mCurrentRequests) {
             for (Request<?> request : mCurrentRequests) {
                 if (filter.apply(request)) {
-                    request.cancel();
+                    canceled.add(request);
                 }
             }
         }
+        for (Request<?> request : canceled) {
+            request.cancel();
+        }
     }
 
     /**
@@ -254,6 +305,34 @@ public class RequestQueue {
         }
     }
 
+    /**
+     * Called from {@link com.android.volley.Request#setPriority(Request.Priority)}. Re-keys the
+     * request if it is waiting in the cache or network queue, whose ordering depends on it.
+     */
+    void reprioritize(Request<?> request, Request.Priority priority) {
+        if (request.getPriority() == priority) {
+            return;
+        }
+        if (mCacheQueue.remove(request)) {
+            request.setPriorityInternal(priority);
+            mCacheQueue.add(request);
+        } else if (!mNetworkQueue.reprioritize(request, priority)) {
+            // Not waiting in a queue; it is being dispatched or staged behind a duplicate.
+            request.setPriorityInternal(priority);
+        }
+    }
+
+    /**
+     * Called from {@link com.android.volley.Request#cancel()}. Removes the given request from the
+     * cache or network queue, if it is still waiting there, and finishes it, so that canceled
+     * requests do not hold on to their place in line until a dispatcher gets to them.
+     */
+    void discardIfQueued(Request<?> request) {
+        if (mCacheQueue.remove(request) || mNetworkQueue.remove(request)) {
+            request.finish("cancel-discard-queued");
+        }
+    }
+
     /**
      * Called from {@link com.android.volley.Request#finish(String)}, indicating that processing of the given request
      * has finished.
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * A {@link Cache} that does work on background threads of its own. {@link RequestQueue#stop()}
+ * stops them, so that a queue that is no longer used doesn't leave them behind.
+ */
+public interface StoppableCache extends Cache {
+    /**
+     * Stops the background threads of the cache once they have finished the work they were
+     * given. The cache remains usable, and starts them again as needed.
+     */
+    public void stop();
+}
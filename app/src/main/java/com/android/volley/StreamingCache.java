@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.io.OutputStream;
+
+/**
+ * A {@link Cache} that can also store an entry while its body is being received, instead of
+ * only once it is complete. {@link NetworkDispatcher} uses this for requests that stream their
+ * responses, if the cache supports it.
+ */
+public interface StreamingCache extends Cache {
+    /**
+     * Opens a writer that stores an entry whose body is written while it is being received.
+     * Nothing is stored until the writer is committed.
+     * @param key Cache key
+     * @param entry The metadata the entry is expected to have, such as parsed from the response
+     *     headers, so that it can be written ahead of the body; its data is ignored
+     * @return A {@link com.android.volley.StreamingCache.Writer}, or null if the entry can't be
+     *     written
+     */
+    public Writer openWriter(String key, Cache.Entry entry);
+
+    /**
+     * Writes the body of an entry to the cache as it is received.
+     */
+    public interface Writer {
+        /**
+         * Returns the stream to write the body of the entry to.
+         */
+        public OutputStream getOutputStream();
+
+        /**
+         * Stores the entry with the body written so far, replacing any previous entry with the
+         * same key. The data of the given entry is ignored. Its metadata is usually the same as
+         * that given when the writer was opened, but may differ.
+         * @param entry Metadata for cache coherency, TTL, etc.
+         */
+        public void commit(Cache.Entry entry);
+
+        /**
+         * Discards the body written so far without storing anything.
+         */
+        public void abort();
+    }
+}
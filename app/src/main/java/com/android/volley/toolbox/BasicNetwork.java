@@ -21,6 +21,7 @@ import android.os.SystemClock;
 import com.android.volley.AuthFailureError;
 import com.android.volley.Cache;
 import com.android.volley.Cache.Entry;
+import com.android.volley.Histogram;
 import com.android.volley.Network;
 import com.android.volley.NetworkError;
 import com.android.volley.NetworkResponse;
@@ -40,10 +41,12 @@ import org.apache.http.StatusLine;
 import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.impl.cookie.DateUtils;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -60,17 +63,33 @@ public class BasicNetwork implements Network {
 
     private static int DEFAULT_POOL_SIZE = 4096;
 
+    /** Upper bound for the size of a pool sized from observed responses. */
+    private static final int MAX_ADAPTIVE_POOL_SIZE = 1024 * 1024;
+
+    /** Number of buffers an adaptively sized pool holds; roughly one per network dispatcher. */
+    private static final int ADAPTIVE_POOL_BUFFERS = 4;
+
+    /** Number of responses observed before an adaptively sized pool is resized. */
+    private static final int ADAPTIVE_POOL_WINDOW = 64;
+
     protected final HttpStack mHttpStack;
 
     protected final ByteArrayPool mPool;
 
+    /** Whether mPool is sized from observed response sizes. */
+    private final boolean mAdaptivePoolSize;
+
+    /** Sizes of the response bodies read through the pool in the current window. */
+    private final Histogram mPooledResponseSizes = new Histogram();
+
     /**
      * @param httpStack HTTP stack to be used
      */
     public BasicNetwork(HttpStack httpStack) {
         // If a pool isn't passed in, then build a small default pool that will give us a lot of
         // benefit and not use too much memory.
-        this(httpStack, new ByteArrayPool(DEFAULT_POOL_SIZE));
+        // The pool is then resized to fit the responses that are actually received.
+        this(httpStack, new ByteArrayPool(DEFAULT_POOL_SIZE), true);
     }
 
     /**
@@ -78,8 +97,21 @@ public class BasicNetwork implements Network {
      * @param pool a buffer pool that improves GC performance in copy operations
      */
     public BasicNetwork(HttpStack httpStack, ByteArrayPool pool) {
+        this(httpStack, pool, false);
+    }
+
+    private BasicNetwork(HttpStack httpStack, ByteArrayPool pool, boolean adaptivePoolSize) {
         mHttpStack = httpStack;
         mPool = pool;
+        mAdaptivePoolSize = adaptivePoolSize;
+    }
+
+    /**
+     * Returns the buffer pool, whose hit rate and bytes reused versus allocated show how well it
+     * fits the responses received.
+     */
+    public ByteArrayPool getPool() {
+        return mPool;
     }
 
     @Override
@@ -113,11 +145,23 @@ public class BasicNetwork implements Network {
                     // the new ones from the response.
                     // http://www.w3.org/Protocols/rfc2616/rfc2616-sec10.html#sec10.3.5
                     entry.responseHeaders.putAll(responseHeaders);
-                    return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED, entry.data,
+                    return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED, entry.getData(),
                             entry.responseHeaders, true,
                             SystemClock.elapsedRealtime() - requestStart);
                 }
 
+                // Hand successful bodies to streaming requests without reading them.
+                if (request.shouldStreamResponse() && httpResponse.getEntity() != null
+                        && statusCode >= 200 && statusCode <= 299) {
+                    InputStream in = httpResponse.getEntity().getContent();
+                    if (in == null) {
+                        throw new ServerError();
+                    }
+                    return new NetworkResponse(statusCode,
+                            new EntityInputStream(in, httpResponse.getEntity()),
+                            responseHeaders, SystemClock.elapsedRealtime() - requestStart);
+                }
+
                 // Some responses such as 204s do not have content.  We must check.
                 if (httpResponse.getEntity() != null) {
                   responseContents = entityToBytes(httpResponse.getEntity());
@@ -225,8 +269,13 @@ public class BasicNetwork implements Network {
 
     /** Reads the contents of HttpEntity into a byte[]. */
     private byte[] entityToBytes(HttpEntity entity) throws IOException, ServerError {
+        long contentLength = entity.getContentLength();
+        if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+            return entityToBytes(entity, (int) contentLength);
+        }
+
         PoolingByteArrayOutputStream bytes =
-                new PoolingByteArrayOutputStream(mPool, (int) entity.getContentLength());
+                new PoolingByteArrayOutputStream(mPool, (int) contentLength);
         byte[] buffer = null;
         try {
             InputStream in = entity.getContent();
@@ -238,6 +287,7 @@ public class BasicNetwork implements Network {
             while ((count = in.read(buffer)) != -1) {
                 bytes.write(buffer, 0, count);
             }
+            onPooledResponseRead(bytes.size());
             return bytes.toByteArray();
         } finally {
             try {
@@ -253,6 +303,90 @@ public class BasicNetwork implements Network {
         }
     }
 
+    /**
+     * Records the size of a response body read through the pool, and resizes the pool to hold
+     * a few buffers of the 90th percentile size once enough responses have been seen. Bodies of
+     * known length don't go through the pool, so they are not counted.
+     */
+    private void onPooledResponseRead(int size) {
+        if (!mAdaptivePoolSize) {
+            return;
+        }
+        mPooledResponseSizes.record(size);
+        if (mPooledResponseSizes.getCount() < ADAPTIVE_POOL_WINDOW) {
+            return;
+        }
+        long bufferSize = Math.max(1, mPooledResponseSizes.getPercentile(90));
+        mPooledResponseSizes.reset();
+        // Growing a buffer of this size takes up to twice that in pooled buffers.
+        long poolSize = Math.min(MAX_ADAPTIVE_POOL_SIZE,
+                Long.highestOneBit(bufferSize) * 4 * ADAPTIVE_POOL_BUFFERS);
+        mPool.setSizeLimit((int) Math.max(DEFAULT_POOL_SIZE, poolSize));
+    }
+
+    /**
+     * Reads the contents of an HttpEntity of declared length into a byte[] allocated for that
+     * length, without any intermediate buffer or copy if the length is right. The declared length
+     * is only used for the allocation: the body is read to the end regardless, as it may differ,
+     * for example when the body was decompressed on the way.
+     */
+    private static byte[] entityToBytes(HttpEntity entity, int contentLength)
+            throws IOException, ServerError {
+        try {
+            InputStream in = entity.getContent();
+            if (in == null) {
+                throw new ServerError();
+            }
+            byte[] bytes = new byte[contentLength];
+            int pos = 0;
+            while (true) {
+                if (pos == bytes.length) {
+                    // Only grow the buffer if the body turns out to be longer than declared.
+                    int next = in.read();
+                    if (next == -1) {
+                        break;
+                    }
+                    bytes = Arrays.copyOf(bytes, bytes.length + Math.max(bytes.length, 1024));
+                    bytes[pos++] = (byte) next;
+                }
+                int count = in.read(bytes, pos, bytes.length - pos);
+                if (count == -1) {
+                    break;
+                }
+                pos += count;
+            }
+            // Trim the buffer if the body was shorter than declared, or it was grown.
+            return pos == bytes.length ? bytes : Arrays.copyOf(bytes, pos);
+        } finally {
+            try {
+                // Close the InputStream and release the resources by "consuming the content".
+                entity.consumeContent();
+            } catch (IOException e) {
+                // This can happen if there was an exception above that left the entity in
+                // an invalid state.
+                VolleyLog.v("Error occured when calling consumingContent");
+            }
+        }
+    }
+
+    /**
+     * Stream of a response body that releases the connection when it is closed.
+     */
+    private static class EntityInputStream extends FilterInputStream {
+        private final HttpEntity mEntity;
+
+        private EntityInputStream(InputStream in, HttpEntity entity) {
+            super(in);
+            mEntity = entity;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Close the InputStream and release the resources by "consuming the content".
+            mEntity.consumeContent();
+        }
+    }
+
     /**
      * Converts Headers[] to Map<String, String>.
      */
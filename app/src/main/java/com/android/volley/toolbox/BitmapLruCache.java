@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+import com.android.volley.toolbox.ImageLoader.ImageCache;
+
+/**
+ * An {@link ImageCache} that holds bitmaps in memory up to a budget in bytes, evicting the least
+ * recently used bitmaps first.
+ *
+ * <p>Hook {@link #trimMemory(int)} up to {@link android.app.Application#onTrimMemory(int)} so
+ * that the cache gives memory back when the system runs low.</p>
+ *
+ * <p>Optionally, bitmaps evicted from the cache can be recycled into a {@link BitmapPool} for
+ * decoding new images. Only enable this if the app knows that evicted bitmaps are no longer
+ * displayed: the pixels of a pooled bitmap are overwritten by the next image decoded into it.
+ * A large cache is not enough to guarantee that, as {@link #trimMemory(int)} evicts bitmaps
+ * while they may still be on screen, and a single cached bitmap may be shown by containers of
+ * several sizes.</p>
+ */
+public class BitmapLruCache extends LruCache<String, Bitmap> implements ImageCache {
+    /** Default fraction of the memory class to use for the cache. */
+    public static final float DEFAULT_MEMORY_FRACTION = 0.125f;
+
+    /** Pool that evicted bitmaps are put in, or null. */
+    private final BitmapPool mBitmapPool;
+
+    /**
+     * Creates a cache that uses {@link #DEFAULT_MEMORY_FRACTION} of the memory class.
+     * @param context Context to use for looking up the memory class.
+     */
+    public BitmapLruCache(Context context) {
+        this(getCacheSize(context, DEFAULT_MEMORY_FRACTION));
+    }
+
+    /**
+     * Creates a cache with the given budget.
+     * @param maxSizeBytes The maximum number of bytes of bitmaps to hold.
+     */
+    public BitmapLruCache(int maxSizeBytes) {
+        this(maxSizeBytes, null);
+    }
+
+    /**
+     * Creates a cache with the given budget that puts evicted bitmaps in the given pool.
+     * @param maxSizeBytes The maximum number of bytes of bitmaps to hold.
+     * @param bitmapPool The pool to put evicted bitmaps in, or null to let them be collected.
+     */
+    public BitmapLruCache(int maxSizeBytes, BitmapPool bitmapPool) {
+        super(maxSizeBytes);
+        mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Returns the given fraction of the memory class of this device, in bytes.
+     * @param context Context to use for looking up the memory class.
+     * @param fraction The fraction of the memory class, between 0 and 1.
+     */
+    public static int getCacheSize(Context context, float fraction) {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long memoryClassBytes = activityManager.getMemoryClass() * 1024L * 1024L;
+        return (int) (memoryClassBytes * fraction);
+    }
+
+    /**
+     * Returns the number of bytes used by the pixels of the given bitmap.
+     */
+    public static int getBitmapBytes(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    @Override
+    protected int sizeOf(String key, Bitmap value) {
+        return getBitmapBytes(value);
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+        if (evicted && mBitmapPool != null) {
+            mBitmapPool.put(oldValue);
+        }
+    }
+
+    @Override
+    public Bitmap getBitmap(String url) {
+        return get(url);
+    }
+
+    @Override
+    public void putBitmap(String url, Bitmap bitmap) {
+        put(url, bitmap);
+    }
+
+    /**
+     * Releases memory according to the given trim level, as passed to
+     * {@link android.app.Application#onTrimMemory(int)}. The cache is halved when memory runs low
+     * or the UI is hidden, and emptied when the process is likely to be killed.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(size() / 2);
+        }
+        if (mBitmapPool != null) {
+            mBitmapPool.trimMemory(level);
+        }
+    }
+
+    /**
+     * Returns the number of bytes of bitmaps currently held.
+     */
+    public int getResidentBytes() {
+        return size();
+    }
+
+    /**
+     * Returns the fraction of lookups that found their bitmap, or 0 if there were none.
+     */
+    public synchronized float getHitRate() {
+        int hits = hitCount();
+        int lookups = hits + missCount();
+        return lookups == 0 ? 0 : (float) hits / lookups;
+    }
+}
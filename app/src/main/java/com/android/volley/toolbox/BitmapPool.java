@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.os.Build;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A pool of mutable bitmaps whose pixel memory can be reused by
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} instead of allocating new bitmaps.
+ *
+ * <p>Bitmaps are bucketed by config and allocation size. From KitKat on, a request is served by
+ * any pooled bitmap that is large enough, up to {@link #MAX_SIZE_MULTIPLE} times the size
+ * needed. Before KitKat, the platform can only decode into a bitmap of exactly the same
+ * dimensions with an inSampleSize of 1, so only such bitmaps are handed out. Bitmap reuse is not
+ * supported before Honeycomb, where the pool stays empty.</p>
+ *
+ * <p>A bitmap put in the pool must no longer be used by anyone else, since its pixels will be
+ * overwritten. When the pool is full, the least recently pooled bitmaps are dropped.</p>
+ */
+public class BitmapPool {
+    /** Largest multiple of the requested size that a reused bitmap may have. */
+    public static final int MAX_SIZE_MULTIPLE = 4;
+
+    /** Config -> allocation size in bytes -> pooled bitmaps of that size. */
+    private final Map<Config, TreeMap<Integer, LinkedList<Bitmap>>> mBuckets =
+            new HashMap<Config, TreeMap<Integer, LinkedList<Bitmap>>>();
+
+    /** All pooled bitmaps, least recently pooled first. */
+    private final LinkedHashSet<Bitmap> mBitmapsByAge = new LinkedHashSet<Bitmap>();
+
+    /** The total size of the bitmaps in the pool. */
+    private int mCurrentSize = 0;
+
+    /** The maximum aggregate size of the bitmaps in the pool. */
+    private final int mSizeLimit;
+
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * @param sizeLimit the maximum size of the pool, in bytes
+     */
+    public BitmapPool(int sizeLimit) {
+        mSizeLimit = sizeLimit;
+    }
+
+    /**
+     * Returns whether bitmaps can be reused on this device.
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Returns a bitmap from the pool that a bitmap of the given dimensions and config can be
+     * decoded into, or null if there is none. The returned bitmap is removed from the pool.
+     *
+     * @param width the width of the bitmap that will be decoded
+     * @param height the height of the bitmap that will be decoded
+     * @param config the config of the bitmap that will be decoded
+     * @param sampleSize the inSampleSize the bitmap will be decoded with
+     */
+    public synchronized Bitmap get(int width, int height, Config config, int sampleSize) {
+        TreeMap<Integer, LinkedList<Bitmap>> sizes = mBuckets.get(config);
+        if (sizes != null) {
+            int size = width * height * getBytesPerPixel(config);
+            boolean exact = Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT;
+            if (!exact || sampleSize == 1) {
+                Map<Integer, LinkedList<Bitmap>> candidates = exact
+                        ? sizes.subMap(size, true, size, true)
+                        : sizes.subMap(size, true, size * MAX_SIZE_MULTIPLE, true);
+                for (LinkedList<Bitmap> bitmaps : candidates.values()) {
+                    for (Bitmap bitmap : bitmaps) {
+                        if (!exact || (bitmap.getWidth() == width && bitmap.getHeight() == height)) {
+                            remove(bitmap);
+                            mHitCount++;
+                            return bitmap;
+                        }
+                    }
+                }
+            }
+        }
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * Returns a bitmap to the pool. The bitmap is dropped if it is immutable, or larger than
+     * the whole pool.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (!isSupported() || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || mBitmapsByAge.contains(bitmap)) {
+            return;
+        }
+        int size = getAllocationSize(bitmap);
+        if (size > mSizeLimit) {
+            return;
+        }
+        Config config = bitmap.getConfig();
+        TreeMap<Integer, LinkedList<Bitmap>> sizes = mBuckets.get(config);
+        if (sizes == null) {
+            sizes = new TreeMap<Integer, LinkedList<Bitmap>>();
+            mBuckets.put(config, sizes);
+        }
+        LinkedList<Bitmap> bitmaps = sizes.get(size);
+        if (bitmaps == null) {
+            bitmaps = new LinkedList<Bitmap>();
+            sizes.put(size, bitmaps);
+        }
+        bitmaps.add(bitmap);
+        mBitmapsByAge.add(bitmap);
+        mCurrentSize += size;
+        trimToSize(mSizeLimit);
+    }
+
+    /**
+     * Drops the least recently pooled bitmaps until the pool is no larger than the given size.
+     */
+    public synchronized void trimToSize(int size) {
+        while (mCurrentSize > size) {
+            remove(mBitmapsByAge.iterator().next());
+        }
+    }
+
+    /**
+     * Releases memory according to the given trim level, as passed to
+     * {@link android.app.Application#onTrimMemory(int)}.
+     */
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mCurrentSize / 2);
+        }
+    }
+
+    /**
+     * Returns the total size of the bitmaps in the pool, in bytes.
+     */
+    public synchronized int getSize() {
+        return mCurrentSize;
+    }
+
+    /**
+     * Returns the number of calls to {@link #get} that returned a bitmap.
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of calls to {@link #get} that returned null.
+     */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    private void remove(Bitmap bitmap) {
+        int size = getAllocationSize(bitmap);
+        TreeMap<Integer, LinkedList<Bitmap>> sizes = mBuckets.get(bitmap.getConfig());
+        LinkedList<Bitmap> bitmaps = sizes.get(size);
+        bitmaps.remove(bitmap);
+        if (bitmaps.isEmpty()) {
+            sizes.remove(size);
+        }
+        mBitmapsByAge.remove(bitmap);
+        mCurrentSize -= size;
+    }
+
+    /**
+     * Returns the number of bytes of pixel memory held by the given bitmap.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int getAllocationSize(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int getBytesPerPixel(Config config) {
+        if (config == Config.ARGB_8888) {
+            return 4;
+        } else if (config == Config.ALPHA_8) {
+            return 1;
+        }
+        return 2;
+    }
+}
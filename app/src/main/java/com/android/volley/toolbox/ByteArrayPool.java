@@ -16,11 +16,9 @@
 
 package com.android.volley.toolbox;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * ByteArrayPool is a source and repository of <code>byte[]</code> objects. Its purpose is to
@@ -48,30 +46,44 @@ import java.util.List;
  * are no other lingering references to it.
  * <p>
  * This class ensures that the total size of the buffers in its recycling pool never exceeds a
- * certain byte limit. When a buffer is returned that would cause the pool to exceed the limit,
- * least-recently-used buffers are disposed.
+ * certain byte limit. When a buffer is returned that would cause the pool to exceed the limit, it
+ * is disposed.
+ * <p>
+ * Buffers are pooled in power-of-two size classes, each of which is a lock-free stack, so that
+ * getting and returning a buffer take constant time and never block, no matter how many threads
+ * share the pool. New buffers are allocated with their length rounded up to a power of two, so
+ * that once returned they can serve any request of their size class.
  */
 public class ByteArrayPool {
-    /** The buffer pool, arranged both by last use and by buffer size */
-    private List<byte[]> mBuffersByLastUse = new LinkedList<byte[]>();
-    private List<byte[]> mBuffersBySize = new ArrayList<byte[]>(64);
+    /** Number of size classes; class <code>i</code> holds buffers of at least 2^i bytes. */
+    private static final int CLASS_COUNT = 31;
+
+    /** The top of the stack of pooled buffers of each size class. */
+    private final AtomicReferenceArray<Node> mStacks = new AtomicReferenceArray<Node>(CLASS_COUNT);
 
     /** The total size of the buffers in the pool */
-    private int mCurrentSize = 0;
+    private final AtomicInteger mCurrentSize = new AtomicInteger();
 
     /**
-     * The maximum aggregate size of the buffers in the pool. Old buffers are discarded to stay
-     * under this limit.
+     * The maximum aggregate size of the buffers in the pool. Buffers are discarded rather than
+     * pooled to stay under this limit.
      */
-    private final int mSizeLimit;
+    private volatile int mSizeLimit;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mBytesReused = new AtomicLong();
+    private final AtomicLong mBytesAllocated = new AtomicLong();
 
-    /** Compares buffers by size */
-    protected static final Comparator<byte[]> BUF_COMPARATOR = new Comparator<byte[]>() {
-        @Override
-        public int compare(byte[] lhs, byte[] rhs) {
-            return lhs.length - rhs.length;
+    /** An entry in the stack of a size class. */
+    private static class Node {
+        final byte[] buf;
+        Node next;
+
+        Node(byte[] buf) {
+            this.buf = buf;
         }
-    };
+    }
 
     /**
      * @param sizeLimit the maximum size of the pool, in bytes
@@ -88,48 +100,126 @@ public class ByteArrayPool {
      *        larger.
      * @return a byte[] buffer is always returned.
      */
-    public synchronized byte[] getBuf(int len) {
-        for (int i = 0; i < mBuffersBySize.size(); i++) {
-            byte[] buf = mBuffersBySize.get(i);
-            if (buf.length >= len) {
-                mCurrentSize -= buf.length;
-                mBuffersBySize.remove(i);
-                mBuffersByLastUse.remove(buf);
+    public byte[] getBuf(int len) {
+        int sizeClass = len <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(len - 1);
+        // Look in the next larger class as well, rather than allocating.
+        for (int i = sizeClass; i < CLASS_COUNT && i <= sizeClass + 1; i++) {
+            byte[] buf = pop(i);
+            if (buf != null) {
+                mHitCount.incrementAndGet();
+                mBytesReused.addAndGet(buf.length);
                 return buf;
             }
         }
-        return new byte[len];
+        byte[] buf = new byte[sizeClass < CLASS_COUNT ? 1 << sizeClass : len];
+        mMissCount.incrementAndGet();
+        mBytesAllocated.addAndGet(buf.length);
+        return buf;
     }
 
     /**
-     * Returns a buffer to the pool, throwing away old buffers if the pool would exceed its allotted
-     * size.
+     * Returns a buffer to the pool, unless the pool would then exceed its allotted size.
      *
      * @param buf the buffer to return to the pool.
      */
-    public synchronized void returnBuf(byte[] buf) {
-        if (buf == null || buf.length > mSizeLimit) {
+    public void returnBuf(byte[] buf) {
+        if (buf == null || buf.length == 0 || buf.length > mSizeLimit) {
             return;
         }
-        mBuffersByLastUse.add(buf);
-        int pos = Collections.binarySearch(mBuffersBySize, buf, BUF_COMPARATOR);
-        if (pos < 0) {
-            pos = -pos - 1;
-        }
-        mBuffersBySize.add(pos, buf);
-        mCurrentSize += buf.length;
-        trim();
+        int size;
+        do {
+            size = mCurrentSize.get();
+            if (size + buf.length > mSizeLimit) {
+                return;
+            }
+        } while (!mCurrentSize.compareAndSet(size, size + buf.length));
+
+        // A buffer belongs to the largest class whose requests it can serve.
+        int sizeClass = 31 - Integer.numberOfLeadingZeros(buf.length);
+        Node node = new Node(buf);
+        do {
+            node.next = mStacks.get(sizeClass);
+        } while (!mStacks.compareAndSet(sizeClass, node.next, node));
     }
 
     /**
-     * Removes buffers from the pool until it is under its size limit.
+     * Discards pooled buffers, largest first, until the pool is no larger than the given size.
+     *
+     * @param size the size, in bytes, to trim the pool to.
      */
-    private synchronized void trim() {
-        while (mCurrentSize > mSizeLimit) {
-            byte[] buf = mBuffersByLastUse.remove(0);
-            mBuffersBySize.remove(buf);
-            mCurrentSize -= buf.length;
+    public void trimToSize(int size) {
+        for (int i = CLASS_COUNT - 1; i >= 0 && mCurrentSize.get() > size; i--) {
+            while (mCurrentSize.get() > size && pop(i) != null) {
+                // Keep discarding buffers of this class.
+            }
         }
     }
 
+    /**
+     * Returns the total size of the buffers in the pool, in bytes.
+     */
+    public int getSize() {
+        return mCurrentSize.get();
+    }
+
+    /**
+     * Changes the maximum size of the pool, discarding buffers if it is now too large.
+     *
+     * @param sizeLimit the maximum size of the pool, in bytes
+     */
+    public void setSizeLimit(int sizeLimit) {
+        mSizeLimit = sizeLimit;
+        trimToSize(sizeLimit);
+    }
+
+    /**
+     * Returns the maximum size of the pool, in bytes.
+     */
+    public int getSizeLimit() {
+        return mSizeLimit;
+    }
+
+    /**
+     * Returns the number of calls to {@link #getBuf(int)} served by a pooled buffer.
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * Returns the number of calls to {@link #getBuf(int)} that allocated a new buffer.
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Returns the total size of the pooled buffers handed out by {@link #getBuf(int)}, in bytes.
+     */
+    public long getBytesReused() {
+        return mBytesReused.get();
+    }
+
+    /**
+     * Returns the total size of the buffers allocated by {@link #getBuf(int)}, in bytes.
+     */
+    public long getBytesAllocated() {
+        return mBytesAllocated.get();
+    }
+
+    /**
+     * Removes and returns the buffer on top of the stack of the given size class, or null if
+     * there is none.
+     */
+    private byte[] pop(int sizeClass) {
+        Node top;
+        do {
+            top = mStacks.get(sizeClass);
+            if (top == null) {
+                return null;
+            }
+        } while (!mStacks.compareAndSet(sizeClass, top, top.next));
+        mCurrentSize.addAndGet(-top.buf.length);
+        return top.buf;
+    }
 }
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An append-only log of the entries of a {@link DiskBasedCache}, so that its index can be
+ * restored from a single file instead of by parsing the header of every cached file.
+ *
+ * <p>Each put appends a record with everything but the response headers of the entry, which
+ * are loaded from the cached file on first use. Each removal appends a tombstone. Once most of
+ * the records are obsolete, the journal is compacted by rewriting it from the live index.</p>
+ *
+ * <p>If anything can't be appended, the journal is deleted, so that the next start falls back
+ * to scanning the directory rather than trusting a journal that is out of date. This class is
+ * not thread-safe; the cache guards it with its index lock.</p>
+ */
+class CacheJournal {
+    /** Magic number for the current version of the journal format. */
+    private static final int JOURNAL_MAGIC = 0x20141206;
+
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+
+    /** Minimum number of obsolete records before the journal is compacted. */
+    private static final int COMPACT_THRESHOLD = 2000;
+
+    private final File mFile;
+    private final File mTempFile;
+
+    /** Stream appended to, or null if the journal hasn't been opened or has failed. */
+    private OutputStream mWriter;
+
+    /** Number of records in the journal that no longer describe a live entry. */
+    private int mRedundantRecords;
+
+    /** Set when a change couldn't be recorded because the journal wasn't open. */
+    private boolean mMissedRecords;
+
+    /** Set when {@link #read()} found a record torn by a crash at the end of the journal. */
+    private boolean mTorn;
+
+    /**
+     * @param file The journal file; it is created on the first call to {@link #rebuild}.
+     */
+    public CacheJournal(File file) {
+        mFile = file;
+        mTempFile = new File(file.getPath() + ".tmp");
+    }
+
+    /** Returns the journal file. */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Replays the journal. The returned headers have no response headers, and are ordered by
+     * when they were last written. A record torn by a crash at the end of the journal is
+     * ignored, and the journal is then {@link #isTorn() torn}.
+     * @throws IOException if the journal is missing or not a journal
+     */
+    public Map<String, CacheHeader> read() throws IOException {
+        Map<String, CacheHeader> entries = new LinkedHashMap<String, CacheHeader>();
+        InputStream is = new BufferedInputStream(new FileInputStream(mFile));
+        int records = 0;
+        mTorn = false;
+        try {
+            if (DiskBasedCache.readInt(is) != JOURNAL_MAGIC) {
+                throw new IOException("Not a cache journal: " + mFile);
+            }
+            while (true) {
+                int op = is.read();
+                if (op == -1) {
+                    break;
+                }
+                String key = DiskBasedCache.readString(is);
+                if (op == OP_PUT) {
+                    CacheHeader entry = new CacheHeader(key);
+                    entry.size = DiskBasedCache.readLong(is);
+                    entry.headerSize = DiskBasedCache.readLong(is);
+                    entry.etag = DiskBasedCache.readString(is);
+                    if (entry.etag.equals("")) {
+                        entry.etag = null;
+                    }
+                    entry.serverDate = DiskBasedCache.readLong(is);
+                    entry.ttl = DiskBasedCache.readLong(is);
+                    entry.softTtl = DiskBasedCache.readLong(is);
+                    // Re-insert, so that the order reflects the latest write.
+                    entries.remove(key);
+                    entries.put(key, entry);
+                } else if (op == OP_REMOVE) {
+                    entries.remove(key);
+                } else {
+                    throw new IOException("Unknown journal record " + op);
+                }
+                records++;
+            }
+        } catch (EOFException e) {
+            VolleyLog.d("Ignoring torn record at the end of %s", mFile);
+            mTorn = true;
+        } finally {
+            is.close();
+        }
+        mRedundantRecords = records - entries.size();
+        return entries;
+    }
+
+    /**
+     * Opens the journal for appending, as it was left by {@link #read()}.
+     */
+    public void open() throws IOException {
+        close();
+        mWriter = new BufferedOutputStream(new FileOutputStream(mFile, true));
+    }
+
+    /**
+     * Returns true if changes were made while the journal was closed, so it can't simply be
+     * reopened.
+     */
+    public boolean hasMissedRecords() {
+        return mMissedRecords;
+    }
+
+    /**
+     * Returns true if the journal ends in a torn record, so it can't simply be reopened:
+     * records appended after it would be read out of alignment.
+     */
+    public boolean isTorn() {
+        return mTorn;
+    }
+
+    /**
+     * Returns true if enough of the journal is obsolete that it should be rebuilt.
+     * @param liveEntries The number of entries currently in the cache
+     */
+    public boolean isCompactionNeeded(int liveEntries) {
+        return mRedundantRecords >= COMPACT_THRESHOLD && mRedundantRecords >= liveEntries;
+    }
+
+    /**
+     * Replaces the journal with one that only records the given entries, and opens it for
+     * appending.
+     */
+    public void rebuild(Collection<CacheHeader> entries) {
+        close();
+        OutputStream os = null;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(mTempFile));
+            DiskBasedCache.writeInt(os, JOURNAL_MAGIC);
+            for (CacheHeader entry : entries) {
+                writePut(os, entry);
+            }
+            os.close();
+            os = null;
+            if (!mTempFile.renameTo(mFile)) {
+                throw new IOException("Failed to rename " + mTempFile);
+            }
+            mRedundantRecords = 0;
+            mMissedRecords = false;
+            mTorn = false;
+            open();
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException ignored) { }
+                mTempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Records that an entry was written.
+     * @param replaced True if the entry replaced an existing one
+     */
+    public void appendPut(CacheHeader entry, boolean replaced) {
+        if (mWriter == null) {
+            mMissedRecords = true;
+            return;
+        }
+        try {
+            writePut(mWriter, entry);
+            mWriter.flush();
+            if (replaced) {
+                mRedundantRecords++;
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records that an entry was removed.
+     */
+    public void appendRemove(String key) {
+        if (mWriter == null) {
+            mMissedRecords = true;
+            return;
+        }
+        try {
+            mWriter.write(OP_REMOVE);
+            DiskBasedCache.writeString(mWriter, key);
+            mWriter.flush();
+            // The tombstone and the record it obsoletes.
+            mRedundantRecords += 2;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /** Closes the journal, if it's open. */
+    public void close() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException ignored) { }
+            mWriter = null;
+        }
+    }
+
+    private static void writePut(OutputStream os, CacheHeader entry) throws IOException {
+        os.write(OP_PUT);
+        DiskBasedCache.writeString(os, entry.key);
+        DiskBasedCache.writeLong(os, entry.size);
+        DiskBasedCache.writeLong(os, entry.headerSize);
+        DiskBasedCache.writeString(os, entry.etag == null ? "" : entry.etag);
+        DiskBasedCache.writeLong(os, entry.serverDate);
+        DiskBasedCache.writeLong(os, entry.ttl);
+        DiskBasedCache.writeLong(os, entry.softTtl);
+    }
+
+    private void fail(IOException e) {
+        VolleyLog.d("Cache journal %s failed, deleting it: %s", mFile, e.toString());
+        close();
+        mFile.delete();
+        mMissedRecords = true;
+    }
+}
@@ -16,62 +16,169 @@
 
 package com.android.volley.toolbox;
 
+import android.os.Process;
 import android.os.SystemClock;
 
-import com.android.volley.Cache;
+import com.android.volley.AsyncInitCache;
+import com.android.volley.StoppableCache;
+import com.android.volley.StreamingCache;
 import com.android.volley.VolleyLog;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Cache implementation that caches files directly onto the hard disk in the specified
- * directory. The default disk usage size is 5MB, but is configurable.
+ * directory. The default disk usage size is 5MB, but is configurable. Once the cache grows past
+ * it, a background thread evicts entries chosen by an {@link EvictionPolicy} until it is back
+ * under 90% of it.
  */
-public class DiskBasedCache implements Cache {
+public class DiskBasedCache implements StreamingCache, AsyncInitCache, StoppableCache {
 
-    /** Map of the Key, CacheHeader pairs */
+    /**
+     * Map of the Key, CacheHeader pairs, in access order. This, {@link #mTotalSize} and
+     * {@link #mEvictionPolicy} are guarded by the cache itself, and are only ever held for short
+     * index updates.
+     */
     private final Map<String, CacheHeader> mEntries =
             new LinkedHashMap<String, CacheHeader>(16, .75f, true);
 
     /** Total amount of space currently used by the cache in bytes. */
     private long mTotalSize = 0;
 
+    /** Chooses the entries to evict. */
+    private final EvictionPolicy mEvictionPolicy;
+
+    /** Whether an eviction pass has been requested and hasn't finished yet. */
+    private boolean mEvicting = false;
+
+    /** The thread that evicts entries, started when first needed, or null. */
+    private Thread mEvictor;
+
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+    private int mEvictionCount = 0;
+
+    /**
+     * Locks guarding the files of the cache, striped by file name. Reads of a file hold the read
+     * lock of its stripe, and replacing or deleting it holds the write lock. A thread never holds
+     * more than one stripe at a time, except for {@link #clear()}, which takes them in order.
+     */
+    private final ReadWriteLock[] mFileLocks = new ReadWriteLock[LOCK_STRIPES];
+
     /** The root directory to use for the cache. */
     private final File mRootDirectory;
 
+    /** Journal of the index, guarded by the cache like the index itself. */
+    private final CacheJournal mJournal;
+
+    /** Whether {@link #initialize()} has finished indexing the files on disk. */
+    private volatile boolean mInitialized = false;
+
     /** The maximum size of the cache in bytes. */
     private final int mMaxCacheSizeInBytes;
 
     /** Default maximum disk usage in bytes. */
     private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
 
-    /** High water mark percentage for the cache */
+    /** Low water mark percentage for the cache, down to which eviction frees space. */
     private static final float HYSTERESIS_FACTOR = 0.9f;
 
+    /** Maximum number of entries evicted in one critical section. */
+    private static final int EVICTION_BATCH_SIZE = 16;
+
     /** Magic number for current version of cache file format. */
     private static final int CACHE_MAGIC = 0x20140623;
 
+    /** Size from which entries are memory-mapped rather than read onto the managed heap. */
+    private static final int MAP_THRESHOLD = 64 * 1024;
+
+    /** Number of file lock stripes; a power of two. */
+    private static final int LOCK_STRIPES = 32;
+
+    /** Length of the names of shard directories, which are prefixes of file names. */
+    private static final int SHARD_NAME_LENGTH = 2;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Digest used to name files, per thread as MessageDigest isn't thread-safe. */
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /** Name of the journal file in the root directory. */
+    private static final String JOURNAL_FILE_NAME = "journal";
+
+    /** Suffix of files that are still being written. */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Age after which a leftover temporary file is assumed to be abandoned. */
+    private static final long TEMP_FILE_MAX_AGE_MS = 60 * 1000;
+
     /**
      * Constructs an instance of the DiskBasedCache at the specified directory.
      * @param rootDirectory The root directory of the cache.
-     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes; once the cache grows
+     *     past it, entries are evicted in the background.
+     * @param evictionPolicy The policy choosing which entries to evict.
      */
-    public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
+    public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes,
+            EvictionPolicy evictionPolicy) {
         mRootDirectory = rootDirectory;
         mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mEvictionPolicy = evictionPolicy;
+        mJournal = new CacheJournal(new File(rootDirectory, JOURNAL_FILE_NAME));
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mFileLocks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Constructs an instance of the DiskBasedCache at the specified directory that evicts the
+     * least recently used entries first.
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     */
+    public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
+        this(rootDirectory, maxCacheSizeInBytes, new LruEvictionPolicy());
     }
 
     /**
@@ -87,15 +194,23 @@ public class DiskBasedCache implements Cache {
      * Clears the cache. Deletes all cached files from disk.
      */
     @Override
-    public synchronized void clear() {
-        File[] files = mRootDirectory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                file.delete();
+    public void clear() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mFileLocks[i].writeLock().lock();
+        }
+        try {
+            deleteContents(mRootDirectory);
+            synchronized (this) {
+                mEntries.clear();
+                mEvictionPolicy.clear();
+                mTotalSize = 0;
+                mJournal.rebuild(Collections.<CacheHeader>emptyList());
+            }
+        } finally {
+            for (int i = LOCK_STRIPES - 1; i >= 0; i--) {
+                mFileLocks[i].writeLock().unlock();
             }
         }
-        mEntries.clear();
-        mTotalSize = 0;
         VolleyLog.d("Cache cleared.");
     }
 
@@ -103,59 +218,196 @@ public class DiskBasedCache implements Cache {
      * Returns the cache entry with the specified key if it exists, null otherwise.
      */
     @Override
-    public synchronized Entry get(String key) {
-        CacheHeader entry = mEntries.get(key);
-        // if the entry does not exist, return.
-        if (entry == null) {
-            return null;
-        }
-
-        File file = getFileForKey(key);
-        CountingInputStream cis = null;
+    public Entry get(String key) {
+        String fileName = getFilenameForKey(key);
+        File file = getFile(fileName);
+        Lock lock = getLock(fileName).readLock();
+        lock.lock();
+        FileInputStream fis = null;
         try {
-            cis = new CountingInputStream(new FileInputStream(file));
-            CacheHeader.readHeader(cis); // eat header
-            byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
+            // Looked up under the file lock, so that the header matches the file on disk.
+            CacheHeader entry = getEntry(key);
+            if (entry == null && !mInitialized) {
+                // The file may just not have been indexed yet.
+                entry = probeEntry(key, file);
+            }
+            recordLookup(key, entry != null);
+            // if the entry does not exist, return.
+            if (entry == null) {
+                return null;
+            }
+
+            // The in-memory header knows where the body starts, so the header on disk doesn't
+            // need to be parsed again.
+            fis = new FileInputStream(file);
+            FileChannel channel = fis.getChannel();
+            long length = channel.size() - entry.headerSize;
+            if (length < 0) {
+                throw new IOException("File is shorter than its header");
+            }
+            if (entry.responseHeaders == null) {
+                // Restored from the journal, which leaves the response headers on disk. Other
+                // readers may load them at the same time; they read the same headers.
+                entry.responseHeaders = readResponseHeaders(channel, entry);
+            }
+            if (length >= MAP_THRESHOLD) {
+                // The mapping stays valid after the channel is closed. Files are only ever
+                // replaced by renaming, never rewritten in place, so it can't be truncated.
+                return entry.toCacheEntry(
+                        channel.map(FileChannel.MapMode.READ_ONLY, entry.headerSize, length));
+            }
+            byte[] data = new byte[(int) length];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, entry.headerSize + buffer.position()) == -1) {
+                    throw new IOException("Expected " + length + " bytes, read "
+                            + buffer.position() + " bytes");
+                }
+            }
             return entry.toCacheEntry(data);
         } catch (IOException e) {
             VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
+        } finally {
+            closeQuietly(fis);
+            lock.unlock();
+        }
+        // Removed after releasing the read lock, as it can't be upgraded to the write lock.
+        remove(key);
+        return null;
+    }
+
+    /**
+     * Indexes the file for the given key by parsing its header, if it exists. Used to serve
+     * hits before initialization has reached the file.
+     */
+    private CacheHeader probeEntry(String key, File file) {
+        CountingInputStream fis = null;
+        try {
+            fis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+            CacheHeader entry = CacheHeader.readHeader(fis);
+            if (!key.equals(entry.key)) {
+                return null;
+            }
+            entry.headerSize = fis.bytesRead;
+            entry.size = file.length();
+            entry.fileName = file.getName();
+            restoreEntry(key, entry);
+            return getEntry(key);
+        } catch (IOException e) {
+            // Not cached, or not readable yet; initialization will sort it out.
             return null;
         } finally {
-            if (cis != null) {
-                try {
-                    cis.close();
-                } catch (IOException ioe) {
-                    return null;
-                }
+            closeQuietly(fis);
+        }
+    }
+
+    /**
+     * Reads the response headers of an entry from the header of its file.
+     */
+    private static Map<String, String> readResponseHeaders(FileChannel channel,
+            CacheHeader entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) entry.headerSize);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) == -1) {
+                throw new EOFException();
             }
         }
+        CacheHeader header =
+                CacheHeader.readHeader(new ByteArrayInputStream(buffer.array()));
+        if (!entry.key.equals(header.key)) {
+            throw new IOException("File belongs to " + header.key);
+        }
+        return header.responseHeaders;
+    }
+
+    /**
+     * Initializes the DiskBasedCache from its journal, and by scanning for any other files
+     * currently in the specified root directory. Creates the root directory if necessary.
+     *
+     * <p>Normally only the journal is read; the headers of cached files are only parsed if the
+     * journal is missing or corrupt, or for files it doesn't know about. Only the index is
+     * locked, one entry at a time, so the cache may be used while this is in progress. Entries
+     * written in the meantime take precedence over what is on disk, and files that haven't been
+     * indexed yet are looked up directly.</p>
+     */
+    @Override
+    public void initialize() {
+        try {
+            initializeIndex();
+        } finally {
+            mInitialized = true;
+        }
     }
 
     /**
-     * Initializes the DiskBasedCache by scanning for all files currently in the
-     * specified root directory. Creates the root directory if necessary.
+     * Returns true; gets and puts are served while {@link #initialize()} is in progress.
      */
     @Override
-    public synchronized void initialize() {
+    public boolean canServeWhileInitializing() {
+        return true;
+    }
+
+    private void initializeIndex() {
         if (!mRootDirectory.exists()) {
             if (!mRootDirectory.mkdirs()) {
                 VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
             }
+            rebuildJournal();
             return;
         }
 
-        File[] files = mRootDirectory.listFiles();
+        List<File> files = listCacheFiles();
         if (files == null) {
             return;
         }
+
+        Map<String, CacheHeader> journaled = null;
+        try {
+            journaled = mJournal.read();
+        } catch (IOException e) {
+            VolleyLog.d("Scanning cache dir, journal unusable: %s", e.toString());
+        }
+
+        Set<File> journaledFiles = new HashSet<File>();
+        boolean journalStale = journaled == null;
+        if (journaled != null) {
+            Set<File> existingFiles = new HashSet<File>(files);
+            for (CacheHeader entry : journaled.values()) {
+                entry.fileName = getFilenameForKey(entry.key);
+                File file = getFile(entry.fileName);
+                if (existingFiles.contains(file)) {
+                    journaledFiles.add(file);
+                    restoreEntry(entry.key, entry);
+                } else {
+                    journalStale = true;
+                }
+            }
+        }
+
+        long now = System.currentTimeMillis();
         for (File file : files) {
-            BufferedInputStream fis = null;
+            String fileName = file.getName();
+            if (fileName.equals(JOURNAL_FILE_NAME) || journaledFiles.contains(file)) {
+                continue;
+            }
+            if (fileName.endsWith(TEMP_SUFFIX)) {
+                // May belong to a write in progress; only delete it once it's clearly abandoned.
+                if (now - file.lastModified() > TEMP_FILE_MAX_AGE_MS) {
+                    file.delete();
+                }
+                continue;
+            }
+            // Not in the journal, e.g. written just before a crash, or named by an older
+            // version of the cache; parse its header.
+            journalStale = true;
+            CountingInputStream fis = null;
+            CacheHeader entry = null;
             try {
-                fis = new BufferedInputStream(new FileInputStream(file));
-                CacheHeader entry = CacheHeader.readHeader(fis);
+                fis = new CountingInputStream(
+                        new BufferedInputStream(new FileInputStream(file)));
+                entry = CacheHeader.readHeader(fis);
+                entry.headerSize = fis.bytesRead;
                 entry.size = file.length();
-                putEntry(entry.key, entry);
             } catch (IOException e) {
                 if (file != null) {
                    file.delete();
@@ -167,6 +419,68 @@ public class DiskBasedCache implements Cache {
                     }
                 } catch (IOException ignored) { }
             }
+            if (entry != null) {
+                restoreFile(file, entry);
+            }
+        }
+
+        synchronized (this) {
+            if (journalStale || mJournal.hasMissedRecords() || mJournal.isTorn()
+                    || mJournal.isCompactionNeeded(mEntries.size())) {
+                rebuildJournal();
+            } else {
+                try {
+                    mJournal.open();
+                } catch (IOException e) {
+                    rebuildJournal();
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists the files in the root directory and in its shard directories, or returns null if
+     * the root directory can't be read.
+     */
+    private List<File> listCacheFiles() {
+        File[] children = mRootDirectory.listFiles();
+        if (children == null) {
+            return null;
+        }
+        List<File> files = new ArrayList<File>(children.length);
+        for (File child : children) {
+            if (!child.isDirectory()) {
+                files.add(child);
+            } else if (child.getName().length() == SHARD_NAME_LENGTH) {
+                File[] shard = child.listFiles();
+                if (shard != null) {
+                    Collections.addAll(files, shard);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Indexes a file found by {@link #initialize()}, moving it to where its key belongs if it
+     * was named by an older version of the cache.
+     */
+    private void restoreFile(File file, CacheHeader entry) {
+        entry.fileName = getFilenameForKey(entry.key);
+        File expected = getFile(entry.fileName);
+        Lock lock = getLock(entry.fileName).writeLock();
+        lock.lock();
+        try {
+            if (!file.equals(expected)) {
+                // Don't clobber an entry that was written in the meantime.
+                if (getEntry(entry.key) != null || !rename(file, expected)) {
+                    file.delete();
+                    return;
+                }
+            }
+            restoreEntry(entry.key, entry);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -176,43 +490,115 @@ public class DiskBasedCache implements Cache {
      * @param fullExpire True to fully expire the entry, false to soft expire
      */
     @Override
-    public synchronized void invalidate(String key, boolean fullExpire) {
-        Entry entry = get(key);
-        if (entry != null) {
-            entry.softTtl = 0;
-            if (fullExpire) {
-                entry.ttl = 0;
+    public void invalidate(String key, boolean fullExpire) {
+        Lock lock = getLock(getFilenameForKey(key)).writeLock();
+        lock.lock();
+        try {
+            Entry entry = get(key);
+            if (entry != null) {
+                entry.softTtl = 0;
+                if (fullExpire) {
+                    entry.ttl = 0;
+                }
+                writeEntry(key, entry);
             }
-            put(key, entry);
+        } finally {
+            lock.unlock();
         }
-
+        requestEviction();
     }
 
     /**
      * Puts the entry with the specified key into the cache.
      */
     @Override
-    public synchronized void put(String key, Entry entry) {
-        pruneIfNeeded(entry.data.length);
-        File file = getFileForKey(key);
+    public void put(String key, Entry entry) {
+        writeEntry(key, entry);
+        requestEviction();
+    }
+
+    /**
+     * Writes an entry to a temporary file without holding any lock, then renames it into place,
+     * so that a crash never leaves a torn entry behind. Writing to the current file in place
+     * isn't an option anyway, as it may be mapped by readers, which truncating it would break.
+     */
+    private void writeEntry(String key, Entry entry) {
+        File tmpFile = null;
+        FileOutputStream fos = null;
         try {
-            FileOutputStream fos = new FileOutputStream(file);
+            tmpFile = createTempFile();
+            fos = new FileOutputStream(tmpFile);
             CacheHeader e = new CacheHeader(key, entry);
-            boolean success = e.writeHeader(fos);
-            if (!success) {
-                fos.close();
-                VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
-                throw new IOException();
+            ByteBuffer body;
+            if (entry.data != null) {
+                body = ByteBuffer.wrap(entry.data);
+            } else if (entry.buffer != null) {
+                body = entry.buffer.duplicate();
+            } else {
+                body = ByteBuffer.allocate(0);
+            }
+            // Header and body go out in a single gathering write.
+            ByteBuffer[] buffers = new ByteBuffer[] { ByteBuffer.wrap(e.toBytes()), body };
+            FileChannel channel = fos.getChannel();
+            while (body.hasRemaining() || buffers[0].hasRemaining()) {
+                channel.write(buffers);
             }
-            fos.write(entry.data);
             fos.close();
-            putEntry(key, e);
+            fos = null;
+            commitFile(tmpFile, key, e);
             return;
         } catch (IOException e) {
+            VolleyLog.d("Failed to write cache entry for key=%s: %s", key, e.toString());
+        } finally {
+            closeQuietly(fos);
         }
-        boolean deleted = file.delete();
-        if (!deleted) {
-            VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
+        if (tmpFile != null && !tmpFile.delete()) {
+            VolleyLog.d("Could not clean up file %s", tmpFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Creates a temporary file to write an entry to, creating the cache directory first if
+     * {@link #initialize()} hasn't yet, or it has been deleted since.
+     */
+    private File createTempFile() throws IOException {
+        if (!mRootDirectory.exists() && !mRootDirectory.mkdirs() && !mRootDirectory.exists()) {
+            throw new IOException("Unable to create cache dir " + mRootDirectory);
+        }
+        return File.createTempFile("entry", TEMP_SUFFIX, mRootDirectory);
+    }
+
+    /**
+     * Renames a fully written file into place for the given key and indexes its header.
+     */
+    private void commitFile(File tmpFile, String key, CacheHeader header) throws IOException {
+        header.fileName = getFilenameForKey(key);
+        Lock lock = getLock(header.fileName).writeLock();
+        lock.lock();
+        try {
+            // Forget any previous entry first, so that if we crash before the new one is
+            // journaled, the journal doesn't describe the new file with the old header.
+            removeEntry(key);
+            if (!rename(tmpFile, getFile(header.fileName))) {
+                throw new IOException("Failed to rename " + tmpFile.getAbsolutePath());
+            }
+            putEntry(key, header);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens a writer that writes the header of the entry to a temporary file in the cache
+     * directory, followed by the body as it is received.
+     */
+    @Override
+    public Writer openWriter(String key, Entry entry) {
+        try {
+            return new DiskWriter(key, entry);
+        } catch (IOException e) {
+            VolleyLog.d("Unable to open cache writer for key=%s: %s", key, e.toString());
+            return null;
         }
     }
 
@@ -220,98 +606,297 @@ public class DiskBasedCache implements Cache {
      * Removes the specified key from the cache if it exists.
      */
     @Override
-    public synchronized void remove(String key) {
-        boolean deleted = getFileForKey(key).delete();
-        removeEntry(key);
+    public void remove(String key) {
+        String fileName = getFilenameForKey(key);
+        Lock lock = getLock(fileName).writeLock();
+        lock.lock();
+        boolean deleted;
+        try {
+            deleted = getFile(fileName).delete();
+            removeEntry(key);
+        } finally {
+            lock.unlock();
+        }
         if (!deleted) {
             VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                    key, getFilenameForKey(key));
+                    key, fileName);
         }
     }
 
     /**
-     * Creates a pseudo-unique filename for the specified cache key.
+     * Creates a unique filename for the specified cache key: the hex SHA-1 digest of the key.
      * @param key The key to generate a file name for.
-     * @return A pseudo-unique filename.
+     * @return A unique, fixed-length filename.
      */
-    private String getFilenameForKey(String key) {
-        int firstHalfLength = key.length() / 2;
-        String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
-        localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
-        return localFilename;
+    private static String getFilenameForKey(String key) {
+        byte[] digest = DIGEST.get().digest(key.getBytes(UTF_8));
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(chars);
     }
 
     /**
      * Returns a file object for the given cache key.
      */
     public File getFileForKey(String key) {
-        return new File(mRootDirectory, getFilenameForKey(key));
+        return getFile(getFilenameForKey(key));
+    }
+
+    /**
+     * Returns the file with the given name, in the shard directory named by its first
+     * characters.
+     */
+    private File getFile(String fileName) {
+        File shard = new File(mRootDirectory, fileName.substring(0, SHARD_NAME_LENGTH));
+        return new File(shard, fileName);
     }
 
     /**
-     * Prunes the cache to fit the amount of bytes specified.
-     * @param neededSpace The amount of bytes we are trying to fit into the cache.
+     * Renames a file, creating the directory of the target if needed.
      */
-    private void pruneIfNeeded(int neededSpace) {
-        if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes) {
+    private static boolean rename(File from, File to) {
+        if (from.renameTo(to)) {
+            return true;
+        }
+        File parent = to.getParentFile();
+        return parent.mkdirs() && from.renameTo(to);
+    }
+
+    /**
+     * Deletes everything in the given directory, recursively.
+     */
+    private static void deleteContents(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteContents(file);
+                }
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the lock guarding the file with the given name. Locks are striped by file name
+     * rather than by key, so that a file only ever has one lock.
+     */
+    private ReadWriteLock getLock(String fileName) {
+        int hash = fileName.hashCode();
+        hash ^= (hash >>> 16);
+        return mFileLocks[hash & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Has the evictor thread evict entries if the cache has outgrown its maximum size, starting
+     * the thread if it isn't running.
+     */
+    private synchronized void requestEviction() {
+        if (mEvicting || mTotalSize < mMaxCacheSizeInBytes) {
             return;
         }
-        if (VolleyLog.DEBUG) {
-            VolleyLog.v("Pruning old cache entries.");
+        mEvicting = true;
+        if (mEvictor == null) {
+            mEvictor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    evictLoop();
+                }
+            }, "VolleyCacheEvictor");
+            mEvictor.setDaemon(true);
+            mEvictor.start();
         }
+        notifyAll();
+    }
 
-        long before = mTotalSize;
-        int prunedFiles = 0;
-        long startTime = SystemClock.elapsedRealtime();
+    /**
+     * Stops the evictor thread once it has finished any eviction in progress. The cache remains
+     * usable; the thread is started again the next time the cache outgrows its maximum size.
+     */
+    @Override
+    public synchronized void stop() {
+        mEvictor = null;
+        notifyAll();
+    }
 
-        Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, CacheHeader> entry = iterator.next();
-            CacheHeader e = entry.getValue();
-            boolean deleted = getFileForKey(e.key).delete();
-            if (deleted) {
-                mTotalSize -= e.size;
-            } else {
-               VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                       e.key, getFilenameForKey(e.key));
+    /**
+     * Runs eviction passes as they are requested, until {@link #stop()} is called.
+     */
+    private void evictLoop() {
+        Thread self = Thread.currentThread();
+        while (true) {
+            synchronized (this) {
+                while (!mEvicting && mEvictor == self) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ignored) {
+                        // Only stop() ends the thread.
+                    }
+                }
+                if (mEvictor != self) {
+                    // Stopped before a requested pass started; let the next request start a
+                    // new thread for it.
+                    mEvicting = false;
+                    return;
+                }
             }
-            iterator.remove();
-            prunedFiles++;
+            evict();
+        }
+    }
 
-            if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
-                break;
+    /**
+     * Evicts entries until the cache is below the low water mark. Victims are taken off the
+     * index a batch at a time, and their files are deleted in between under their own file
+     * locks, so that neither lock is held for long.
+     */
+    private void evict() {
+        long startTime = SystemClock.elapsedRealtime();
+        int evictedFiles = 0;
+        long evictedBytes = 0;
+        List<CacheHeader> victims = new ArrayList<CacheHeader>(EVICTION_BATCH_SIZE);
+        while (true) {
+            victims.clear();
+            synchronized (this) {
+                while (victims.size() < EVICTION_BATCH_SIZE
+                        && mTotalSize >= mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+                    String key = mEvictionPolicy.nextVictim();
+                    CacheHeader e = key != null ? mEntries.get(key) : null;
+                    if (e == null) {
+                        break;
+                    }
+                    removeEntry(key);
+                    victims.add(e);
+                }
+                if (victims.isEmpty()) {
+                    mEvicting = false;
+                    mEvictionCount += evictedFiles;
+                    break;
+                }
+            }
+
+            for (CacheHeader victim : victims) {
+                Lock lock = getLock(victim.fileName).writeLock();
+                lock.lock();
+                try {
+                    // The key may have been written again since it was taken off the index.
+                    if (getEntry(victim.key) == null && !getFile(victim.fileName).delete()) {
+                        VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
+                                victim.key, victim.fileName);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                evictedFiles++;
+                evictedBytes += victim.size;
             }
         }
 
         if (VolleyLog.DEBUG) {
-            VolleyLog.v("pruned %d files, %d bytes, %d ms",
-                    prunedFiles, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
+            VolleyLog.v("evicted %d files, %d bytes, %d ms", evictedFiles, evictedBytes,
+                    SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /** Returns the number of gets that found an entry. */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /** Returns the number of gets that didn't find an entry. */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /** Returns the number of entries evicted to make room. */
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /** Returns the total amount of space currently used by the cache in bytes. */
+    public synchronized long getTotalSize() {
+        return mTotalSize;
+    }
+
+    private synchronized void recordLookup(String key, boolean hit) {
+        if (hit) {
+            mHitCount++;
+            mEvictionPolicy.onAccess(key);
+        } else {
+            mMissCount++;
         }
     }
 
+    /**
+     * Returns the header of the entry with the specified key, or null if it isn't cached.
+     */
+    private synchronized CacheHeader getEntry(String key) {
+        return mEntries.get(key);
+    }
+
     /**
      * Puts the entry with the specified key into the cache.
      * @param key The key to identify the entry by.
      * @param entry The entry to cache.
      */
-    private void putEntry(String key, CacheHeader entry) {
-        if (!mEntries.containsKey(key)) {
+    private synchronized void putEntry(String key, CacheHeader entry) {
+        boolean replaced = mEntries.containsKey(key);
+        if (!replaced) {
             mTotalSize += entry.size;
         } else {
             CacheHeader oldEntry = mEntries.get(key);
             mTotalSize += (entry.size - oldEntry.size);
         }
         mEntries.put(key, entry);
+        mEvictionPolicy.onAdd(key, entry.size);
+        mJournal.appendPut(entry, replaced);
+        compactJournalIfNeeded();
+    }
+
+    /**
+     * Puts an entry found on disk into the index, unless it has one already. Unlike
+     * {@link #putEntry}, this doesn't journal the entry.
+     */
+    private synchronized void restoreEntry(String key, CacheHeader entry) {
+        if (!mEntries.containsKey(key)) {
+            mTotalSize += entry.size;
+            mEntries.put(key, entry);
+            mEvictionPolicy.onAdd(key, entry.size);
+        }
     }
 
     /**
      * Removes the entry identified by 'key' from the cache.
      */
-    private void removeEntry(String key) {
+    private synchronized void removeEntry(String key) {
         CacheHeader entry = mEntries.get(key);
         if (entry != null) {
             mTotalSize -= entry.size;
             mEntries.remove(key);
+            mEvictionPolicy.onRemove(key);
+            mJournal.appendRemove(key);
+            compactJournalIfNeeded();
+        }
+    }
+
+    private synchronized void compactJournalIfNeeded() {
+        if (mJournal.isCompactionNeeded(mEntries.size())) {
+            rebuildJournal();
+        }
+    }
+
+    /**
+     * Rewrites the journal from the current index.
+     */
+    private synchronized void rebuildJournal() {
+        long startTime = SystemClock.elapsedRealtime();
+        mJournal.rebuild(mEntries.values());
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("rebuilt journal of %d entries, %d ms", mEntries.size(),
+                    SystemClock.elapsedRealtime() - startTime);
         }
     }
 
@@ -331,6 +916,118 @@ public class DiskBasedCache implements Cache {
         return bytes;
     }
 
+    /**
+     * Writes an entry to a temporary file, header first and then the body as it is received, so
+     * that committing it is just a rename into place and readers never see a partially written
+     * entry. If the entry is committed with a different header than it was opened with, the
+     * body is copied to a new file behind the new header instead.
+     */
+    private class DiskWriter implements Writer {
+        private final String mKey;
+        private final byte[] mHeaderBytes;
+        private final File mFile;
+        private final OutputStream mOutputStream;
+        private boolean mClosed = false;
+
+        private DiskWriter(String key, Entry entry) throws IOException {
+            mKey = key;
+            mHeaderBytes = new CacheHeader(key, entry, 0).toBytes();
+            mFile = createTempFile();
+            mOutputStream = new BufferedOutputStream(new FileOutputStream(mFile));
+            try {
+                mOutputStream.write(mHeaderBytes);
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOutputStream;
+        }
+
+        @Override
+        public void commit(Entry entry) {
+            File entryFile = mFile;
+            try {
+                close();
+                long size = mFile.length() - mHeaderBytes.length;
+                CacheHeader header = new CacheHeader(mKey, entry, size);
+                byte[] headerBytes = header.toBytes();
+                if (!Arrays.equals(headerBytes, mHeaderBytes)) {
+                    entryFile = rewriteHeader(headerBytes, size);
+                }
+                commitFile(entryFile, mKey, header);
+                entryFile = null;
+            } catch (IOException e) {
+                VolleyLog.d("Failed to commit cache entry for key=%s: %s", mKey, e.toString());
+            } finally {
+                if (entryFile != null) {
+                    entryFile.delete();
+                }
+                mFile.delete();
+            }
+            requestEviction();
+        }
+
+        @Override
+        public void abort() {
+            try {
+                close();
+            } catch (IOException ignored) { }
+            mFile.delete();
+        }
+
+        /**
+         * Copies the body to a new temporary file behind the given header, and returns it.
+         */
+        private File rewriteHeader(byte[] headerBytes, long size) throws IOException {
+            File entryFile = createTempFile();
+            FileOutputStream fos = null;
+            FileInputStream fis = null;
+            try {
+                fos = new FileOutputStream(entryFile);
+                FileChannel out = fos.getChannel();
+                ByteBuffer headerBuffer = ByteBuffer.wrap(headerBytes);
+                while (headerBuffer.hasRemaining()) {
+                    out.write(headerBuffer);
+                }
+                fis = new FileInputStream(mFile);
+                FileChannel in = fis.getChannel();
+                long position = 0;
+                while (position < size) {
+                    position += in.transferTo(mHeaderBytes.length + position, size - position,
+                            out);
+                }
+                fos.close();
+                fos = null;
+                return entryFile;
+            } catch (IOException e) {
+                entryFile.delete();
+                throw e;
+            } finally {
+                closeQuietly(fos);
+                closeQuietly(fis);
+            }
+        }
+
+        private void close() throws IOException {
+            if (!mClosed) {
+                mClosed = true;
+                mOutputStream.close();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
     /**
      * Handles holding onto the cache headers for an entry.
      */
@@ -343,6 +1040,12 @@ public class DiskBasedCache implements Cache {
         /** The key that identifies the cache entry. */
         public String key;
 
+        /** The size of the serialized header, which is where the data starts in the file. */
+        public long headerSize;
+
+        /** The name of the file the entry is stored in. (This is not serialized to disk.) */
+        public String fileName;
+
         /** ETag for cache coherence. */
         public String etag;
 
@@ -355,19 +1058,40 @@ public class DiskBasedCache implements Cache {
         /** Soft TTL for this record. */
         public long softTtl;
 
-        /** Headers from the response resulting in this cache entry. */
-        public Map<String, String> responseHeaders;
+        /**
+         * Headers from the response resulting in this cache entry. Volatile, as
+         * {@link DiskBasedCache#get(String)} loads them into headers restored from the journal
+         * while only holding a read lock, and other readers must see the map fully built.
+         */
+        public volatile Map<String, String> responseHeaders;
 
         private CacheHeader() { }
 
+        /**
+         * Instantiates an empty CacheHeader for the given key, to be filled in by the caller.
+         */
+        CacheHeader(String key) {
+            this.key = key;
+        }
+
         /**
          * Instantiates a new CacheHeader object
          * @param key The key that identifies the cache entry
          * @param entry The cache entry.
          */
         public CacheHeader(String key, Entry entry) {
+            this(key, entry, entry.getDataLength());
+        }
+
+        /**
+         * Instantiates a new CacheHeader object for an entry whose data is stored separately.
+         * @param key The key that identifies the cache entry
+         * @param entry The cache entry; its data is ignored.
+         * @param size The size of the data of the cache entry.
+         */
+        public CacheHeader(String key, Entry entry, long size) {
             this.key = key;
-            this.size = entry.data.length;
+            this.size = size;
             this.etag = entry.etag;
             this.serverDate = entry.serverDate;
             this.ttl = entry.ttl;
@@ -403,13 +1127,29 @@ public class DiskBasedCache implements Cache {
          * Creates a cache entry for the specified data.
          */
         public Entry toCacheEntry(byte[] data) {
-            Entry e = new Entry();
+            Entry e = toCacheEntry();
             e.data = data;
+            return e;
+        }
+
+        /**
+         * Creates a cache entry for data held in the specified buffer.
+         */
+        public Entry toCacheEntry(ByteBuffer buffer) {
+            Entry e = toCacheEntry();
+            e.buffer = buffer;
+            return e;
+        }
+
+        private Entry toCacheEntry() {
+            Entry e = new Entry();
             e.etag = etag;
             e.serverDate = serverDate;
             e.ttl = ttl;
             e.softTtl = softTtl;
-            e.responseHeaders = responseHeaders;
+            // A copy, as callers may modify the headers of the entry, e.g. to merge those of a
+            // 304 response, and this header stays in the index.
+            e.responseHeaders = new HashMap<String, String>(responseHeaders);
             return e;
         }
 
@@ -419,14 +1159,16 @@ public class DiskBasedCache implements Cache {
          */
         public boolean writeHeader(OutputStream os) {
             try {
-                writeInt(os, CACHE_MAGIC);
-                writeString(os, key);
-                writeString(os, etag == null ? "" : etag);
-                writeLong(os, serverDate);
-                writeLong(os, ttl);
-                writeLong(os, softTtl);
-                writeStringStringMap(responseHeaders, os);
-                os.flush();
+                CountingOutputStream cos = new CountingOutputStream(os);
+                writeInt(cos, CACHE_MAGIC);
+                writeString(cos, key);
+                writeString(cos, etag == null ? "" : etag);
+                writeLong(cos, serverDate);
+                writeLong(cos, ttl);
+                writeLong(cos, softTtl);
+                writeStringStringMap(responseHeaders, cos);
+                cos.flush();
+                headerSize = cos.bytesWritten;
                 return true;
             } catch (IOException e) {
                 VolleyLog.d("%s", e.toString());
@@ -434,6 +1176,18 @@ public class DiskBasedCache implements Cache {
             }
         }
 
+        /**
+         * Serializes this CacheHeader, so that it can be written with a single call rather than
+         * a write per field.
+         */
+        public byte[] toBytes() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            if (!writeHeader(bytes)) {
+                throw new IOException("Failed to write header for " + key);
+            }
+            return bytes.toByteArray();
+        }
+
     }
 
     private static class CountingInputStream extends FilterInputStream {
@@ -462,6 +1216,26 @@ public class DiskBasedCache implements Cache {
         }
     }
 
+    private static class CountingOutputStream extends FilterOutputStream {
+        private int bytesWritten = 0;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            out.write(oneByte);
+            bytesWritten++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            out.write(buffer, offset, count);
+            bytesWritten += count;
+        }
+    }
+
     /*
      * Homebrewed simple serialization system used for reading and writing cache
      * headers on disk. Once upon a time, this used the standard Java
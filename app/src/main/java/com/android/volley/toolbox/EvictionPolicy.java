@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+/**
+ * Decides which entry a {@link DiskBasedCache} evicts next when it has outgrown its size.
+ *
+ * <p>The cache tells the policy about every entry that is added, read, or removed, and asks it
+ * for victims one at a time. Calls are made while holding the cache's index lock, so
+ * implementations don't need to be thread-safe, but they should be quick.</p>
+ */
+public interface EvictionPolicy {
+    /**
+     * Called when an entry is added to the cache, or replaced.
+     * @param key Cache key
+     * @param size The size of the entry in bytes
+     */
+    public void onAdd(String key, long size);
+
+    /**
+     * Called when an entry is read from the cache.
+     * @param key Cache key
+     */
+    public void onAccess(String key);
+
+    /**
+     * Called when an entry is removed from the cache, whether or not it was evicted.
+     * @param key Cache key
+     */
+    public void onRemove(String key);
+
+    /**
+     * Returns the key of the entry to evict next, or null if there is none. The entry is not
+     * forgotten until {@link #onRemove(String)} is called.
+     */
+    public String nextVictim();
+
+    /**
+     * Forgets all entries.
+     */
+    public void clear();
+}
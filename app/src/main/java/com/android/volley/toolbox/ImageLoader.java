@@ -15,40 +15,85 @@
  */
 package com.android.volley.toolbox;
 
+import android.annotation.TargetApi;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
 import android.widget.ImageView;
 
+import com.android.volley.Histogram;
 import com.android.volley.Request;
+import com.android.volley.Request.Priority;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response.ErrorListener;
 import com.android.volley.Response.Listener;
 import com.android.volley.VolleyError;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Helper that handles loading and caching images from remote URLs.
  *
  * The simple way to use this class is to call {@link com.android.volley.toolbox.ImageLoader#get(String, com.android.volley.toolbox.ImageLoader.ImageListener)}
  * and to pass in the default image listener provided by
- * {@link com.android.volley.toolbox.ImageLoader#getImageListener(android.widget.ImageView, int, int)}. Note that all function calls to
- * this class must be made from the main thead, and all responses will be delivered to the main
- * thread as well.
+ * {@link com.android.volley.toolbox.ImageLoader#getImageListener(android.widget.ImageView, int, int)}. This class may be called
+ * from any thread; cache probing and request coalescing run on the calling thread, and all
+ * responses are delivered to the main thread.
  */
 public class ImageLoader {
+    /** Prefetch target: fetch images into the disk cache of the request queue. */
+    public static final int PREFETCH_DISK = 1;
+
+    /** Prefetch target: fetch and decode images into the {@link ImageCache}. */
+    public static final int PREFETCH_MEMORY = 2;
+
+    /**
+     * Value for {@link #setBatchedResponseDelay(int)} that picks the batching delay adaptively.
+     * This is the default.
+     */
+    public static final int BATCH_DELAY_ADAPTIVE = -1;
+
+    /** Approximate duration of a display frame, used when batching adaptively. */
+    private static final int FRAME_INTERVAL_MS = 16;
+
+    /** Maximum number of URLs whose cached sizes are remembered. */
+    private static final int MAX_INDEXED_URLS = 256;
+
     /** RequestQueue for dispatching ImageRequests onto. */
     private final RequestQueue mRequestQueue;
 
-    /** Amount of time to wait after first response arrives before delivering all responses. */
-    private int mBatchResponseDelayMs = 100;
+    /**
+     * Amount of time to wait after first response arrives before delivering all responses, or
+     * {@link #BATCH_DELAY_ADAPTIVE}.
+     */
+    private volatile int mBatchResponseDelayMs = BATCH_DELAY_ADAPTIVE;
+
+    /** Uptime of the last batched delivery. */
+    private long mLastDeliveryMs;
+
+    /** Time between the arrival of responses and their delivery to the listeners. */
+    private final Histogram mBatchDelays = new Histogram();
 
     /** The cache implementation to be used as an L1 cache before calling into volley. */
     private final ImageCache mCache;
 
+    /** Pool of bitmaps to decode into, or null. */
+    private final BitmapPool mBitmapPool;
+
+    /** Guards the in-flight and batched request bookkeeping. */
+    private final Object mLock = new Object();
+
     /**
      * HashMap of Cache keys -> BatchedImageRequest used to track in-flight requests so
      * that we can coalesce multiple requests to the same URL into a single network request.
@@ -56,6 +101,19 @@ public class ImageLoader {
     private final HashMap<String, BatchedImageRequest> mInFlightRequests =
             new HashMap<String, BatchedImageRequest>();
 
+    /**
+     * URL -> cache keys of the sizes of that URL put in the {@link ImageCache}, used to serve
+     * requests from a larger bitmap of the same image. Keys evicted from the cache are pruned
+     * lazily. Guarded by mLock.
+     */
+    private final LinkedHashMap<String, HashSet<String>> mCachedKeys =
+            new LinkedHashMap<String, HashSet<String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, HashSet<String>> eldest) {
+            return size() > MAX_INDEXED_URLS;
+        }
+    };
+
     /** HashMap of the currently pending responses (waiting to be delivered). */
     private final HashMap<String, BatchedImageRequest> mBatchedResponses =
             new HashMap<String, BatchedImageRequest>();
@@ -66,10 +124,21 @@ public class ImageLoader {
     /** Runnable for in-flight response delivery. */
     private Runnable mRunnable;
 
+    /** Tag of the disk prefetch requests issued by this loader. */
+    private final Object mPrefetchTag = new Object();
+
+    /**
+     * URL -> outstanding prefetch of that URL that no container has asked for yet. Requests for
+     * the same URL share a cache key in the {@link RequestQueue}, whatever their size, so a
+     * container asking for the URL waits for the prefetch and must promote it. Guarded by mLock.
+     */
+    private final HashMap<String, Request<?>> mPrefetches = new HashMap<String, Request<?>>();
+
     /**
      * Simple cache adapter interface. If provided to the ImageLoader, it
      * will be used as an L1 cache before dispatch to Volley. Implementations
-     * must not block. Implementation with an LruCache is recommended.
+     * must be thread-safe and must not block. Implementation with an LruCache
+     * is recommended.
      */
     public interface ImageCache {
         public Bitmap getBitmap(String url);
@@ -82,8 +151,20 @@ public class ImageLoader {
      * @param imageCache The cache to use as an L1 cache.
      */
     public ImageLoader(RequestQueue queue, ImageCache imageCache) {
+        this(queue, imageCache, null);
+    }
+
+    /**
+     * Constructs a new ImageLoader that decodes images into bitmaps from the given pool.
+     * @param queue The RequestQueue to use for making image requests.
+     * @param imageCache The cache to use as an L1 cache.
+     * @param bitmapPool The pool of bitmaps to reuse, or null to always allocate new bitmaps.
+     * @see BitmapLruCache#BitmapLruCache(int, BitmapPool)
+     */
+    public ImageLoader(RequestQueue queue, ImageCache imageCache, BitmapPool bitmapPool) {
         mRequestQueue = queue;
         mCache = imageCache;
+        mBitmapPool = bitmapPool;
     }
 
     /**
@@ -150,10 +231,8 @@ public class ImageLoader {
      * @return True if the item exists in cache, false otherwise.
      */
     public boolean isCached(String requestUrl, int maxWidth, int maxHeight) {
-        throwIfNotOnMainThread();
-
         String cacheKey = getCacheKey(requestUrl, maxWidth, maxHeight);
-        return mCache.getBitmap(cacheKey) != null;
+        return getCachedBitmap(requestUrl, maxWidth, maxHeight, cacheKey) != null;
     }
 
     /**
@@ -184,47 +263,206 @@ public class ImageLoader {
      */
     public ImageContainer get(String requestUrl, ImageListener imageListener,
             int maxWidth, int maxHeight) {
-        // only fulfill requests that were initiated from the main thread.
-        throwIfNotOnMainThread();
+        return get(requestUrl, imageListener, maxWidth, maxHeight, Priority.LOW);
+    }
 
+    /**
+     * Issues a bitmap request with the given URL and priority if that image is not available
+     * in the cache, and returns a bitmap container that contains all of the data
+     * relating to the request (as well as the default image if the requested
+     * image is not available). If a request for the same image is already in flight, it is
+     * promoted to the given priority if that is higher than its own.
+     *
+     * <p>If a larger bitmap of the same URL is in the cache, it is returned instead of loading
+     * the image at the requested size; it is up to the view to scale it down.</p>
+     *
+     * <p>May be called from any thread. If called from the main thread, the immediate
+     * {@link ImageListener#onResponse(ImageContainer, boolean)} is invoked before this method
+     * returns; otherwise it is posted to the main thread.</p>
+     * @param requestUrl The url of the remote image
+     * @param imageListener The listener to call when the remote image is loaded
+     * @param maxWidth The maximum width of the returned image.
+     * @param maxHeight The maximum height of the returned image.
+     * @param priority The priority of this container's interest in the image.
+     * @return A container object that contains all of the properties of the request, as well as
+     *     the currently available image (default if remote is not loaded).
+     * @see ImageContainer#setPriority(Priority)
+     */
+    public ImageContainer get(String requestUrl, ImageListener imageListener,
+            int maxWidth, int maxHeight, Priority priority) {
         final String cacheKey = getCacheKey(requestUrl, maxWidth, maxHeight);
 
         // Try to look up the request in the cache of remote images.
-        Bitmap cachedBitmap = mCache.getBitmap(cacheKey);
+        Bitmap cachedBitmap = getCachedBitmap(requestUrl, maxWidth, maxHeight, cacheKey);
         if (cachedBitmap != null) {
             // Return the cached bitmap.
             ImageContainer container = new ImageContainer(cachedBitmap, requestUrl, null, null);
-            imageListener.onResponse(container, true);
+            deliverImmediateResponse(imageListener, container);
             return container;
         }
 
         // The bitmap did not exist in the cache, fetch it!
         ImageContainer imageContainer =
                 new ImageContainer(null, requestUrl, cacheKey, imageListener);
+        imageContainer.mPriority = priority;
 
         // Update the caller to let them know that they should use the default bitmap.
-        imageListener.onResponse(imageContainer, true);
+        deliverImmediateResponse(imageListener, imageContainer);
 
-        // Check to see if a request is already in-flight.
-        BatchedImageRequest request = mInFlightRequests.get(cacheKey);
-        if (request != null) {
-            // If it is, add this request to the list of listeners.
-            request.addContainer(imageContainer);
-            return imageContainer;
-        }
+        Request<Bitmap> newRequest;
+        synchronized (mLock) {
+            // A prefetch of the URL, at any size, holds up requests for it; promote it.
+            promotePrefetch(requestUrl, priority);
+
+            // Check to see if a request is already in-flight.
+            BatchedImageRequest request = mInFlightRequests.get(cacheKey);
+            if (request != null) {
+                // If it is, add this request to the list of listeners.
+                request.addContainer(imageContainer);
+                request.updatePriority();
+                return imageContainer;
+            }
 
-        // The request is not already in flight. Send the new request to the network and
-        // track it.
-        Request<Bitmap> newRequest = makeImageRequest(requestUrl, maxWidth, maxHeight, cacheKey);
+            // The request is not already in flight. Track the new request so that concurrent
+            // callers join it, then send it to the network outside of the lock.
+            newRequest = makeImageRequest(requestUrl, maxWidth, maxHeight, cacheKey);
+            newRequest.setPriority(priority);
+            mInFlightRequests.put(cacheKey,
+                    new BatchedImageRequest(newRequest, requestUrl, imageContainer));
+        }
 
         mRequestQueue.add(newRequest);
-        mInFlightRequests.put(cacheKey,
-                new BatchedImageRequest(newRequest, imageContainer));
         return imageContainer;
     }
 
+    /**
+     * Invokes the immediate response of {@link #get(String, ImageListener, int, int, Priority)},
+     * on the calling thread if that is the main thread, or posted to the main thread otherwise.
+     */
+    private void deliverImmediateResponse(final ImageListener listener,
+            final ImageContainer container) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            listener.onResponse(container, true);
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onResponse(container, true);
+            }
+        });
+    }
+
+    /**
+     * Warms the caches with the given images so that they are ready when they are requested with
+     * {@link #get(String, ImageListener, int, int)}, for example for the next page of a feed.
+     *
+     * <p>Prefetches run at {@link Priority#IDLE}, so they only go to the network while no other
+     * request is waiting. Images that are already in the {@link ImageCache} or in flight are
+     * skipped. If a container later asks for a URL that is being prefetched, at any size, the
+     * prefetch is promoted to the container's priority, as the container's request waits for
+     * it.</p>
+     *
+     * @param urls The URLs of the images to fetch.
+     * @param maxWidth The maximum width the images will be requested at.
+     * @param maxHeight The maximum height the images will be requested at.
+     * @param target {@link #PREFETCH_DISK} to only fetch the encoded images into the disk cache,
+     *     or {@link #PREFETCH_MEMORY} to also decode them into the {@link ImageCache}.
+     */
+    public void prefetch(List<String> urls, int maxWidth, int maxHeight, int target) {
+        for (final String url : urls) {
+            final String cacheKey = getCacheKey(url, maxWidth, maxHeight);
+            if (getCachedBitmap(url, maxWidth, maxHeight, cacheKey) != null) {
+                continue;
+            }
+
+            if ((target & PREFETCH_MEMORY) != 0) {
+                // Track the request without any container, so that get() can join it.
+                Request<Bitmap> request;
+                synchronized (mLock) {
+                    if (mInFlightRequests.containsKey(cacheKey) || mPrefetches.containsKey(url)) {
+                        continue;
+                    }
+                    request = makeImageRequest(url, maxWidth, maxHeight, cacheKey);
+                    request.setPriority(Priority.IDLE);
+                    mInFlightRequests.put(cacheKey, new BatchedImageRequest(request, url, null));
+                    mPrefetches.put(url, request);
+                }
+                mRequestQueue.add(request);
+            } else if ((target & PREFETCH_DISK) != 0) {
+                // Duplicates of in-flight requests are coalesced by the RequestQueue.
+                Request<?> request = new PrefetchRequest(url) {
+                    @Override
+                    protected void deliverResponse(Void response) {
+                        forgetPrefetch(url, this);
+                    }
+
+                    @Override
+                    public void deliverError(VolleyError error) {
+                        forgetPrefetch(url, this);
+                    }
+                };
+                request.setPriority(Priority.IDLE);
+                request.setTag(mPrefetchTag);
+                synchronized (mLock) {
+                    if (mInFlightRequests.containsKey(cacheKey) || mPrefetches.containsKey(url)) {
+                        continue;
+                    }
+                    mPrefetches.put(url, request);
+                }
+                mRequestQueue.add(request);
+            }
+        }
+    }
+
+    /**
+     * Cancels all prefetches issued by {@link #prefetch(List, int, int, int)} that no container
+     * has asked for yet.
+     */
+    public void cancelPrefetches() {
+        mRequestQueue.cancelAll(mPrefetchTag);
+        synchronized (mLock) {
+            mPrefetches.clear();
+            Iterator<BatchedImageRequest> iterator = mInFlightRequests.values().iterator();
+            while (iterator.hasNext()) {
+                BatchedImageRequest request = iterator.next();
+                if (request.mContainers.isEmpty()) {
+                    request.mRequest.cancel();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Promotes the outstanding prefetch of the given URL, if any, to the given priority, and
+     * stops treating it as a prefetch, so that {@link #cancelPrefetches()} leaves it alone. Must
+     * be called while holding the lock.
+     */
+    private void promotePrefetch(String url, Priority priority) {
+        Request<?> prefetch = mPrefetches.remove(url);
+        if (prefetch == null) {
+            return;
+        }
+        prefetch.setTag(null);
+        if (prefetch.getPriority().ordinal() < priority.ordinal()) {
+            prefetch.setPriority(priority);
+        }
+    }
+
+    /**
+     * Stops tracking a prefetch once it has completed.
+     */
+    private void forgetPrefetch(String url, Request<?> request) {
+        synchronized (mLock) {
+            if (mPrefetches.get(url) == request) {
+                mPrefetches.remove(url);
+            }
+        }
+    }
+
     protected Request<Bitmap> makeImageRequest(String requestUrl, int maxWidth, int maxHeight, final String cacheKey) {
-        return new ImageRequest(requestUrl, new Listener<Bitmap>() {
+        Request<Bitmap> request = new ImageRequest(requestUrl, new Listener<Bitmap>() {
             @Override
             public void onResponse(Bitmap response) {
                 onGetImageSuccess(cacheKey, response);
@@ -235,18 +473,76 @@ public class ImageLoader {
             public void onErrorResponse(VolleyError error) {
                 onGetImageError(cacheKey, error);
             }
-        });
+        }, mBitmapPool);
+        // Decode while downloading instead of buffering the whole image in memory.
+        request.setStreamResponse(true);
+        return request;
+    }
+
+    /**
+     * Changes the priority of all in-flight containers with the given tag, and of the requests
+     * they are waiting on. Use this to let visible images reach the network first, for example
+     * by promoting the containers of on-screen rows and demoting the rest when a list scrolls.
+     * @param tag The tag set with {@link ImageContainer#setTag(Object)}; equality is by identity.
+     * @param priority The new priority.
+     */
+    public void setPriority(Object tag, Priority priority) {
+        for (ImageContainer container : getInFlightContainers(tag)) {
+            container.setPriority(priority);
+        }
+    }
+
+    /**
+     * Cancels all in-flight containers with the given tag. Requests that no other container is
+     * waiting on are canceled, and dropped from the network queue if they have not started yet.
+     * @param tag The tag set with {@link ImageContainer#setTag(Object)}; equality is by identity.
+     */
+    public void cancelRequests(Object tag) {
+        for (ImageContainer container : getInFlightContainers(tag)) {
+            container.cancelRequest();
+        }
+    }
+
+    private List<ImageContainer> getInFlightContainers(Object tag) {
+        if (tag == null) {
+            throw new IllegalArgumentException("tag must not be null");
+        }
+        List<ImageContainer> containers = new ArrayList<ImageContainer>();
+        synchronized (mLock) {
+            for (BatchedImageRequest request : mInFlightRequests.values()) {
+                for (ImageContainer container : request.mContainers) {
+                    if (container.mTag == tag) {
+                        containers.add(container);
+                    }
+                }
+            }
+        }
+        return containers;
     }
 
     /**
      * Sets the amount of time to wait after the first response arrives before delivering all
      * responses. Batching can be disabled entirely by passing in 0.
-     * @param newBatchedResponseDelayMs The time in milliseconds to wait.
+     *
+     * <p>By default ({@link #BATCH_DELAY_ADAPTIVE}), a response is delivered right away if nothing
+     * was delivered during the last frame, as is the case when the UI is idle. While responses
+     * keep arriving, as they do when a list is scrolled, they are coalesced onto the next frame
+     * instead.</p>
+     * @param newBatchedResponseDelayMs The time in milliseconds to wait, or
+     *     {@link #BATCH_DELAY_ADAPTIVE}.
      */
     public void setBatchedResponseDelay(int newBatchedResponseDelayMs) {
         mBatchResponseDelayMs = newBatchedResponseDelayMs;
     }
 
+    /**
+     * Returns the histogram of how long, in milliseconds, loaded images waited to be batched
+     * before being delivered to their listeners.
+     */
+    public Histogram getBatchDelays() {
+        return mBatchDelays;
+    }
+
     /**
      * Handler for when an image was successfully loaded.
      * @param cacheKey The cache key that is associated with the image request.
@@ -256,15 +552,27 @@ public class ImageLoader {
         // cache the image that was fetched.
         mCache.putBitmap(cacheKey, response);
 
-        // remove the request from the list of in-flight requests.
-        BatchedImageRequest request = mInFlightRequests.remove(cacheKey);
+        synchronized (mLock) {
+            // remove the request from the list of in-flight requests.
+            BatchedImageRequest request = mInFlightRequests.remove(cacheKey);
 
-        if (request != null) {
-            // Update the response bitmap.
-            request.mResponseBitmap = response;
+            if (request != null) {
+                // remember the size, so that smaller requests for the same URL can use it.
+                HashSet<String> keys = mCachedKeys.get(request.mUrl);
+                if (keys == null) {
+                    keys = new HashSet<String>();
+                    mCachedKeys.put(request.mUrl, keys);
+                }
+                keys.add(cacheKey);
+
+                forgetPrefetch(request.mUrl, request.mRequest);
 
-            // Send the batched response
-            batchResponse(cacheKey, request);
+                // Update the response bitmap.
+                request.mResponseBitmap = response;
+
+                // Send the batched response
+                batchResponse(cacheKey, request);
+            }
         }
     }
 
@@ -275,14 +583,18 @@ public class ImageLoader {
     protected void onGetImageError(String cacheKey, VolleyError error) {
         // Notify the requesters that something failed via a null result.
         // Remove this request from the list of in-flight requests.
-        BatchedImageRequest request = mInFlightRequests.remove(cacheKey);
+        synchronized (mLock) {
+            BatchedImageRequest request = mInFlightRequests.remove(cacheKey);
+
+            if (request != null) {
+                forgetPrefetch(request.mUrl, request.mRequest);
 
-        if (request != null) {
-            // Set the error for this request
-            request.setError(error);
+                // Set the error for this request
+                request.setError(error);
 
-            // Send the batched response
-            batchResponse(cacheKey, request);
+                // Send the batched response
+                batchResponse(cacheKey, request);
+            }
         }
     }
 
@@ -296,7 +608,8 @@ public class ImageLoader {
          */
         private Bitmap mBitmap;
 
-        private final ImageListener mListener;
+        /** The listener to notify, or null once the request is canceled. Guarded by mLock. */
+        private ImageListener mListener;
 
         /** The cache key that was associated with the request */
         private final String mCacheKey;
@@ -304,6 +617,12 @@ public class ImageLoader {
         /** The request URL that was specified */
         private final String mRequestUrl;
 
+        /** The priority of this container's interest in the image. */
+        private Priority mPriority = Priority.LOW;
+
+        /** An opaque token tagging this container; used for bulk reprioritization. */
+        private Object mTag;
+
         /**
          * Constructs a BitmapContainer object.
          * @param bitmap The final bitmap (if it exists).
@@ -322,28 +641,73 @@ public class ImageLoader {
          * Releases interest in the in-flight request (and cancels it if no one else is listening).
          */
         public void cancelRequest() {
-            if (mListener == null) {
-                return;
+            synchronized (mLock) {
+                if (mListener == null) {
+                    return;
+                }
+                // Checked again at delivery, in case the response is already being delivered.
+                mListener = null;
+
+                BatchedImageRequest request = mInFlightRequests.get(mCacheKey);
+                if (request != null) {
+                    boolean canceled = request.removeContainerAndCancelIfNecessary(this);
+                    if (canceled) {
+                        mInFlightRequests.remove(mCacheKey);
+                    }
+                } else {
+                    // check to see if it is already batched for delivery.
+                    request = mBatchedResponses.get(mCacheKey);
+                    if (request != null) {
+                        request.removeContainerAndCancelIfNecessary(this);
+                        if (request.mContainers.size() == 0) {
+                            mBatchedResponses.remove(mCacheKey);
+                        }
+                    }
+                }
             }
+        }
 
-            BatchedImageRequest request = mInFlightRequests.get(mCacheKey);
-            if (request != null) {
-                boolean canceled = request.removeContainerAndCancelIfNecessary(this);
-                if (canceled) {
-                    mInFlightRequests.remove(mCacheKey);
+        /**
+         * Changes the priority of this container's interest in the image. The in-flight request
+         * runs at the highest priority of the containers waiting on it, and is moved to its new
+         * place in the request queue if that changes.
+         */
+        public void setPriority(Priority priority) {
+            synchronized (mLock) {
+                mPriority = priority;
+                if (mListener == null) {
+                    return;
                 }
-            } else {
-                // check to see if it is already batched for delivery.
-                request = mBatchedResponses.get(mCacheKey);
+                BatchedImageRequest request = mInFlightRequests.get(mCacheKey);
                 if (request != null) {
-                    request.removeContainerAndCancelIfNecessary(this);
-                    if (request.mContainers.size() == 0) {
-                        mBatchedResponses.remove(mCacheKey);
-                    }
+                    request.updatePriority();
                 }
             }
         }
 
+        /**
+         * Returns the priority of this container's interest in the image.
+         */
+        public Priority getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * Sets a tag on this container. Can be used to reprioritize or cancel all containers with
+         * this tag by {@link ImageLoader#setPriority(Object, Priority)} and
+         * {@link ImageLoader#cancelRequests(Object)}.
+         */
+        public void setTag(Object tag) {
+            mTag = tag;
+        }
+
+        /**
+         * Returns this container's tag.
+         */
+        public Object getTag() {
+            return mTag;
+        }
+
         /**
          * Returns the bitmap associated with the request URL if it has been loaded, null otherwise.
          */
@@ -367,23 +731,34 @@ public class ImageLoader {
         /** The request being tracked */
         private final Request<?> mRequest;
 
+        /** The URL the request was made for */
+        private final String mUrl;
+
         /** The result of the request being tracked by this item */
         private Bitmap mResponseBitmap;
 
         /** Error if one occurred for this response */
         private VolleyError mError;
 
+        /** Uptime at which the response was batched for delivery */
+        private long mBatchedAtMs;
+
         /** List of all of the active ImageContainers that are interested in the request */
         private final LinkedList<ImageContainer> mContainers = new LinkedList<ImageContainer>();
 
         /**
          * Constructs a new BatchedImageRequest object
          * @param request The request being tracked
-         * @param container The ImageContainer of the person who initiated the request.
+         * @param url The URL the request was made for
+         * @param container The ImageContainer of the person who initiated the request, or null
+         *     for a prefetch.
          */
-        public BatchedImageRequest(Request<?> request, ImageContainer container) {
+        public BatchedImageRequest(Request<?> request, String url, ImageContainer container) {
             mRequest = request;
-            mContainers.add(container);
+            mUrl = url;
+            if (container != null) {
+                mContainers.add(container);
+            }
         }
 
         /**
@@ -420,17 +795,38 @@ public class ImageLoader {
                 mRequest.cancel();
                 return true;
             }
+            updatePriority();
             return false;
         }
+
+        /**
+         * Runs the request at the highest priority of the containers waiting on it.
+         */
+        public void updatePriority() {
+            if (mContainers.isEmpty()) {
+                return;
+            }
+            Priority priority = mContainers.getFirst().mPriority;
+            for (ImageContainer container : mContainers) {
+                if (container.mPriority.ordinal() > priority.ordinal()) {
+                    priority = container.mPriority;
+                }
+            }
+            if (mRequest.getPriority() != priority) {
+                mRequest.setPriority(priority);
+            }
+        }
     }
 
     /**
      * Starts the runnable for batched delivery of responses if it is not already started.
+     * Must be called while holding the lock.
      * @param cacheKey The cacheKey of the response being delivered.
      * @param request The BatchedImageRequest to be delivered.
      * @param error The volley error associated with the request (if applicable).
      */
     private void batchResponse(String cacheKey, BatchedImageRequest request) {
+        request.mBatchedAtMs = SystemClock.uptimeMillis();
         mBatchedResponses.put(cacheKey, request);
         // If we don't already have a batch delivery runnable in flight, make a new one.
         // Note that this will be used to deliver responses to all callers in mBatchedResponses.
@@ -438,37 +834,137 @@ public class ImageLoader {
             mRunnable = new Runnable() {
                 @Override
                 public void run() {
-                    for (BatchedImageRequest bir : mBatchedResponses.values()) {
-                        for (ImageContainer container : bir.mContainers) {
+                    // Snapshot the batch under the lock, but call the listeners outside of it so
+                    // that they are free to call back into the loader.
+                    List<BatchedImageRequest> batch;
+                    List<List<ImageContainer>> containers;
+                    synchronized (mLock) {
+                        batch = new ArrayList<BatchedImageRequest>(mBatchedResponses.values());
+                        containers = new ArrayList<List<ImageContainer>>(batch.size());
+                        for (BatchedImageRequest bir : batch) {
+                            containers.add(new ArrayList<ImageContainer>(bir.mContainers));
+                        }
+                        mBatchedResponses.clear();
+                        mRunnable = null;
+
+                        mLastDeliveryMs = SystemClock.uptimeMillis();
+                        for (BatchedImageRequest bir : batch) {
+                            mBatchDelays.record(mLastDeliveryMs - bir.mBatchedAtMs);
+                        }
+                    }
+
+                    for (int i = 0; i < batch.size(); i++) {
+                        BatchedImageRequest bir = batch.get(i);
+                        for (ImageContainer container : containers.get(i)) {
                             // If one of the callers in the batched request canceled the request
                             // after the response was received but before it was delivered,
-                            // skip them.
-                            if (container.mListener == null) {
+                            // skip them. That includes cancels since the snapshot was taken, or
+                            // by an earlier listener of this batch.
+                            ImageListener listener;
+                            synchronized (mLock) {
+                                listener = container.mListener;
+                            }
+                            if (listener == null) {
                                 continue;
                             }
                             if (bir.getError() == null) {
                                 container.mBitmap = bir.mResponseBitmap;
-                                container.mListener.onResponse(container, false);
+                                listener.onResponse(container, false);
                             } else {
-                                container.mListener.onErrorResponse(bir.getError());
+                                listener.onErrorResponse(bir.getError());
                             }
                         }
                     }
-                    mBatchedResponses.clear();
-                    mRunnable = null;
                 }
 
             };
             // Post the runnable.
-            mHandler.postDelayed(mRunnable, mBatchResponseDelayMs);
+            scheduleBatchDelivery(mRunnable);
         }
     }
 
-    private void throwIfNotOnMainThread() {
-        if (Looper.myLooper() != Looper.getMainLooper()) {
-            throw new IllegalStateException("ImageLoader must be invoked from the main thread.");
+    /**
+     * Schedules the delivery of the current batch. Must be called while holding the lock.
+     */
+    private void scheduleBatchDelivery(Runnable runnable) {
+        int delayMs = mBatchResponseDelayMs;
+        if (delayMs != BATCH_DELAY_ADAPTIVE) {
+            mHandler.postDelayed(runnable, delayMs);
+        } else if (SystemClock.uptimeMillis() - mLastDeliveryMs >= FRAME_INTERVAL_MS) {
+            // Nothing was delivered during the last frame; don't make this response wait.
+            mHandler.post(runnable);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                && Looper.myLooper() == Looper.getMainLooper()) {
+            // Responses are arriving in a burst; coalesce them onto the next frame.
+            FrameScheduler.postFrameCallback(runnable);
+        } else {
+            mHandler.postDelayed(runnable, FRAME_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Runs callbacks on the next frame. Kept separate so that {@link Choreographer} is only
+     * loaded on devices that have it.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class FrameScheduler {
+        public static void postFrameCallback(final Runnable runnable) {
+            Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    runnable.run();
+                }
+            });
+        }
+    }
+    /**
+     * Returns a bitmap from the L1 cache that can be shown for the given request: either the one
+     * cached for exactly this request, or a larger one cached for the same URL.
+     */
+    private Bitmap getCachedBitmap(String url, int maxWidth, int maxHeight, String cacheKey) {
+        Bitmap bitmap = mCache.getBitmap(cacheKey);
+        if (bitmap != null || (maxWidth == 0 && maxHeight == 0)) {
+            // A request for the full size image can only be served by its own key.
+            return bitmap;
+        }
+
+        String fullSizeKey = getCacheKey(url, 0, 0);
+        synchronized (mLock) {
+            HashSet<String> keys = mCachedKeys.get(url);
+            if (keys == null) {
+                return null;
+            }
+            Iterator<String> iterator = keys.iterator();
+            while (iterator.hasNext()) {
+                String key = iterator.next();
+                Bitmap candidate = mCache.getBitmap(key);
+                if (candidate == null) {
+                    // Evicted from the cache since it was put.
+                    iterator.remove();
+                } else if (key.equals(fullSizeKey)
+                        || isLargeEnough(candidate, maxWidth, maxHeight)) {
+                    return candidate;
+                }
+            }
+            if (keys.isEmpty()) {
+                mCachedKeys.remove(url);
+            }
         }
+        return null;
+    }
+
+    /**
+     * Returns whether the given bitmap is at least as large as the one {@link ImageRequest}
+     * would decode for the given maximum dimensions.
+     */
+    private static boolean isLargeEnough(Bitmap bitmap, int maxWidth, int maxHeight) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int desiredWidth = ImageRequest.getResizedDimension(maxWidth, maxHeight, width, height);
+        int desiredHeight = ImageRequest.getResizedDimension(maxHeight, maxWidth, height, width);
+        return width >= desiredWidth && height >= desiredHeight;
     }
+
     /**
      * Creates a cache key for use with the L1 cache.
      * @param url The URL of the request.
@@ -17,19 +17,31 @@
 package com.android.volley.toolbox;
 
 import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkError;
 import com.android.volley.NetworkResponse;
 import com.android.volley.ParseError;
 import com.android.volley.Request;
 import com.android.volley.Response;
+import com.android.volley.TimeoutError;
 import com.android.volley.VolleyLog;
 
+import android.annotation.TargetApi;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
 
 /**
  * A canned request for getting an image at a given URL and calling
- * back with a decoded Bitmap.
+ * back with a decoded Bitmap. Supports {@link #setStreamResponse(boolean)
+ * streamed responses}, which are decoded while they are downloaded.
  */
 public class ImageRequest extends Request<Bitmap> {
     /** Socket timeout in milliseconds for image requests */
@@ -45,6 +57,7 @@ public class ImageRequest extends Request<Bitmap> {
     private final Config mDecodeConfig;
     private final int mMaxWidth;
     private final int mMaxHeight;
+    private final BitmapPool mBitmapPool;
 
     /** Decoding lock so that we don't decode more than one image at a time (to avoid OOM's) */
     private static final Object sDecodeLock = new Object();
@@ -68,6 +81,19 @@ public class ImageRequest extends Request<Bitmap> {
      */
     public ImageRequest(String url, Response.Listener<Bitmap> listener, int maxWidth, int maxHeight,
             Config decodeConfig, Response.ErrorListener errorListener) {
+        this(url, listener, maxWidth, maxHeight, decodeConfig, errorListener, null);
+    }
+
+    /**
+     * Creates a new image request that decodes into bitmaps taken from the given pool where
+     * possible, and returns intermediate bitmaps to it. Decoded bitmaps are mutable, so that
+     * they can be put in the pool once they are no longer used.
+     *
+     * @see #ImageRequest(String, Response.Listener, int, int, Config, Response.ErrorListener)
+     * @param bitmapPool Pool of bitmaps to reuse, or null to always allocate new bitmaps
+     */
+    public ImageRequest(String url, Response.Listener<Bitmap> listener, int maxWidth, int maxHeight,
+            Config decodeConfig, Response.ErrorListener errorListener, BitmapPool bitmapPool) {
         super(Method.GET, url, errorListener);
         setRetryPolicy(
                 new DefaultRetryPolicy(IMAGE_TIMEOUT_MS, IMAGE_MAX_RETRIES, IMAGE_BACKOFF_MULT));
@@ -75,11 +101,8 @@ public class ImageRequest extends Request<Bitmap> {
         mDecodeConfig = decodeConfig;
         mMaxWidth = maxWidth;
         mMaxHeight = maxHeight;
-    }
-
-    @Override
-    public Priority getPriority() {
-        return Priority.LOW;
+        mBitmapPool = bitmapPool;
+        setPriority(Priority.LOW);
     }
 
     /**
@@ -93,7 +116,7 @@ public class ImageRequest extends Request<Bitmap> {
      * @param actualPrimary Actual size of the primary dimension
      * @param actualSecondary Actual size of the secondary dimension
      */
-    private static int getResizedDimension(int maxPrimary, int maxSecondary, int actualPrimary,
+    static int getResizedDimension(int maxPrimary, int maxSecondary, int actualPrimary,
             int actualSecondary) {
         // If no dominant value at all, just return the actual.
         if (maxPrimary == 0 && maxSecondary == 0) {
@@ -120,31 +143,58 @@ public class ImageRequest extends Request<Bitmap> {
 
     @Override
     protected Response<Bitmap> parseNetworkResponse(NetworkResponse response) {
+        if (response.data == null) {
+            // A streamed response is read from the network while it is decoded, so holding the
+            // decode lock would serialize the downloads of all images.
+            return doParseCatchingErrors(response);
+        }
         // Serialize all decode on a global lock to reduce concurrent heap usage.
         synchronized (sDecodeLock) {
-            try {
-                return doParse(response);
-            } catch (OutOfMemoryError e) {
-                VolleyLog.e("Caught OOM for %d byte image, url=%s", response.data.length, getUrl());
-                return Response.error(new ParseError(e));
+            return doParseCatchingErrors(response);
+        }
+    }
+
+    private Response<Bitmap> doParseCatchingErrors(NetworkResponse response) {
+        try {
+            return doParse(response);
+        } catch (BodyReadException e) {
+            // The download failed, not the image; report it as such so that it is retried.
+            VolleyLog.d("Failed to download image, url=%s: %s", getUrl(),
+                    e.getCause().toString());
+            return Response.error(e.getCause() instanceof SocketTimeoutException
+                    ? new TimeoutError() : new NetworkError(e.getCause()));
+        } catch (IOException e) {
+            VolleyLog.d("Failed to read image, url=%s: %s", getUrl(), e.toString());
+            return Response.error(new ParseError(e));
+        } catch (OutOfMemoryError e) {
+            if (response.data != null) {
+                VolleyLog.e("Caught OOM for %d byte image, url=%s", response.data.length,
+                        getUrl());
+            } else {
+                VolleyLog.e("Caught OOM for streamed image, url=%s", getUrl());
             }
+            return Response.error(new ParseError(e));
         }
     }
 
     /**
      * The real guts of parseNetworkResponse. Broken out for readability.
      */
-    private Response<Bitmap> doParse(NetworkResponse response) {
-        byte[] data = response.data;
+    private Response<Bitmap> doParse(NetworkResponse response) throws IOException {
+        EncodedImage data = new EncodedImage(response);
         BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
         Bitmap bitmap = null;
-        if (mMaxWidth == 0 && mMaxHeight == 0) {
+        boolean reuseBitmaps = mBitmapPool != null && BitmapPool.isSupported();
+        if (mMaxWidth == 0 && mMaxHeight == 0 && !reuseBitmaps) {
             decodeOptions.inPreferredConfig = mDecodeConfig;
-            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
+            bitmap = data.decode(decodeOptions);
+            if (bitmap != null) {
+                addDecodeMarkers(bitmap, false);
+            }
         } else {
             // If we have to resize this image, first get the natural bounds.
             decodeOptions.inJustDecodeBounds = true;
-            BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
+            data.decodeBounds(decodeOptions);
             int actualWidth = decodeOptions.outWidth;
             int actualHeight = decodeOptions.outHeight;
 
@@ -158,19 +208,39 @@ public class ImageRequest extends Request<Bitmap> {
             decodeOptions.inJustDecodeBounds = false;
             // TODO(ficus): Do we need this or is it okay since API 8 doesn't support it?
             // decodeOptions.inPreferQualityOverSpeed = PREFER_QUALITY_OVER_SPEED;
-            decodeOptions.inSampleSize =
-                findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
-            Bitmap tempBitmap =
-                BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
-
-            // If necessary, scale down to the maximal acceptable size.
-            if (tempBitmap != null && (tempBitmap.getWidth() > desiredWidth ||
-                    tempBitmap.getHeight() > desiredHeight)) {
-                bitmap = Bitmap.createScaledBitmap(tempBitmap,
-                        desiredWidth, desiredHeight, true);
-                tempBitmap.recycle();
+            int sampleSize = findBestSampleSize(actualWidth, actualHeight, desiredWidth,
+                    desiredHeight);
+            decodeOptions.inSampleSize = sampleSize;
+
+            // If the sampled image is still larger than desired, have the decoder scale it down
+            // in the same pass, instead of scaling a copy of it afterwards. The decoded size is
+            // computed the way the decoder rounds it, so that a pooled bitmap fits: sampling
+            // rounds up for JPEG and down for other formats, so take the larger, and scaling
+            // rounds to nearest.
+            int decodedWidth = (actualWidth + sampleSize - 1) / sampleSize;
+            int decodedHeight = (actualHeight + sampleSize - 1) / sampleSize;
+            if (actualWidth > 0 && desiredWidth > 0
+                    && (decodedWidth > desiredWidth || decodedHeight > desiredHeight)) {
+                decodeOptions.inScaled = true;
+                decodeOptions.inDensity = actualWidth;
+                decodeOptions.inTargetDensity = desiredWidth * sampleSize;
+                float scale = (float) decodeOptions.inTargetDensity / decodeOptions.inDensity;
+                decodedWidth = (int) (decodedWidth * scale + 0.5f);
+                decodedHeight = (int) (decodedHeight * scale + 0.5f);
+            }
+
+            if (reuseBitmaps) {
+                bitmap = decodeIntoPooledBitmap(data, decodeOptions, decodedWidth, decodedHeight);
             } else {
-                bitmap = tempBitmap;
+                bitmap = data.decode(decodeOptions);
+                if (bitmap != null) {
+                    addDecodeMarkers(bitmap, false);
+                }
+            }
+            if (bitmap != null && decodeOptions.inTargetDensity != 0) {
+                // The decoder tags the bitmap with the target density used for scaling, which is
+                // made up; give it the density an unscaled decode would have had.
+                bitmap.setDensity(Resources.getSystem().getDisplayMetrics().densityDpi);
             }
         }
 
@@ -181,6 +251,248 @@ public class ImageRequest extends Request<Bitmap> {
         }
     }
 
+    /**
+     * Decodes the image into a bitmap from the pool if one fits, or into a new mutable bitmap
+     * otherwise.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private Bitmap decodeIntoPooledBitmap(EncodedImage data, BitmapFactory.Options decodeOptions,
+            int decodedWidth, int decodedHeight) throws IOException {
+        // A reused bitmap must have the config that the image is decoded to.
+        Config config = mDecodeConfig != null ? mDecodeConfig : Config.ARGB_8888;
+        decodeOptions.inPreferredConfig = config;
+        decodeOptions.inMutable = true;
+
+        // Before KitKat, decoding into a reused bitmap doesn't support scaling, and only
+        // supports JPEG and PNG images. Anything the platform would reject is decoded into a new
+        // bitmap up front, as a streamed image can't be decoded a second time.
+        Bitmap reusable = null;
+        boolean kitKat = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        if (kitKat || (decodeOptions.inTargetDensity == 0
+                && ("image/jpeg".equals(decodeOptions.outMimeType)
+                        || "image/png".equals(decodeOptions.outMimeType)))) {
+            reusable = mBitmapPool.get(decodedWidth, decodedHeight, config,
+                    Math.max(1, decodeOptions.inSampleSize));
+        }
+        if (reusable == null) {
+            Bitmap bitmap = data.decode(decodeOptions);
+            if (bitmap != null) {
+                addDecodeMarkers(bitmap, false);
+            }
+            return bitmap;
+        }
+
+        decodeOptions.inBitmap = reusable;
+        Bitmap bitmap;
+        // The platform checks the reused bitmap once it has read the header, so remember where
+        // the image starts in case it refuses it.
+        data.mark();
+        try {
+            bitmap = data.decode(decodeOptions);
+        } catch (IllegalArgumentException e) {
+            // The platform refused to decode into this bitmap; fall back to a new one, if the
+            // image can be read again.
+            decodeOptions.inBitmap = null;
+            if (data.canDecodeAgain()) {
+                bitmap = data.decode(decodeOptions);
+            } else {
+                VolleyLog.d("Bitmap reuse rejected for streamed image, url=%s", getUrl());
+                bitmap = null;
+            }
+        }
+        if (bitmap != reusable) {
+            mBitmapPool.put(reusable);
+        }
+        if (bitmap != null) {
+            addDecodeMarkers(bitmap, bitmap == reusable);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Records the pixel memory used by a decode: the peak number of bytes held at once, and the
+     * number of newly allocated bytes, which is zero if a pooled bitmap was reused.
+     */
+    private void addDecodeMarkers(Bitmap bitmap, boolean reused) {
+        if (VolleyLog.DEBUG) {
+            int bytes = BitmapLruCache.getBitmapBytes(bitmap);
+            addMarker("decode-peak-bytes-" + bytes);
+            addMarker("decode-allocated-bytes-" + (reused ? 0 : bytes));
+        }
+    }
+
+    /**
+     * An encoded image, either in memory or streamed. A streamed image is only buffered while
+     * its bounds are decoded, so that it can be read again for the full decode, and while the
+     * header of a decode into a reused bitmap is read, so that it can be decoded again into a new
+     * bitmap if the platform refuses the reused one. Otherwise the full decode streams it without
+     * holding on to it.
+     */
+    private static class EncodedImage {
+        /** How far a streamed image can be read while decoding bounds and still be rewound. */
+        private static final int MARK_LIMIT = 256 * 1024;
+
+        private final byte[] mData;
+        private final InputStream mStream;
+
+        /** What the decoder reads a streamed image from. */
+        private final DecoderInputStream mDecoderStream;
+
+        /** Whether the stream can be rewound to its start at no cost, e.g. it reads a buffer. */
+        private final boolean mRewindable;
+
+        private EncodedImage(NetworkResponse response) {
+            mData = response.data;
+            if (mData != null) {
+                mStream = null;
+                mRewindable = true;
+            } else if (response.bodyStream.markSupported()) {
+                // Such as a stream of data held in a buffer, which can always be rewound.
+                mStream = response.bodyStream;
+                mRewindable = true;
+                mStream.mark(Integer.MAX_VALUE);
+            } else {
+                mStream = new BufferedInputStream(response.bodyStream);
+                mRewindable = false;
+            }
+            mDecoderStream = mStream != null ? new DecoderInputStream(mStream) : null;
+        }
+
+        /**
+         * Decodes the bounds of the image, and rewinds it for the full decode.
+         * @throws IOException if the bounds were too far into a streamed image to rewind
+         */
+        public void decodeBounds(BitmapFactory.Options options) throws IOException {
+            if (mData != null) {
+                BitmapFactory.decodeByteArray(mData, 0, mData.length, options);
+                return;
+            }
+            if (!mRewindable) {
+                mStream.mark(MARK_LIMIT);
+            }
+            BitmapFactory.decodeStream(mDecoderStream, null, options);
+            mDecoderStream.throwIfReadFailed();
+            mStream.reset();
+        }
+
+        /**
+         * Decodes the image.
+         * @throws BodyReadException if a streamed image could not be read
+         */
+        public Bitmap decode(BitmapFactory.Options options) throws BodyReadException {
+            if (mData != null) {
+                return BitmapFactory.decodeByteArray(mData, 0, mData.length, options);
+            }
+            Bitmap bitmap = BitmapFactory.decodeStream(mDecoderStream, null, options);
+            mDecoderStream.throwIfReadFailed();
+            return bitmap;
+        }
+
+        /**
+         * Remembers the current position of a streamed image, so that a decode that fails early
+         * on can be retried with {@link #canDecodeAgain()}.
+         */
+        public void mark() {
+            if (mStream != null && !mRewindable) {
+                mStream.mark(MARK_LIMIT);
+            }
+        }
+
+        /**
+         * Returns true if the image can be decoded again, rewinding it if it's streamed. A
+         * streamed image that doesn't rewind at no cost can only be decoded again if it hasn't
+         * been read too far past {@link #mark()}.
+         */
+        public boolean canDecodeAgain() {
+            if (mStream != null) {
+                try {
+                    mStream.reset();
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The stream a streamed image is decoded from. It hides mark and reset from the decoder,
+     * which before KitKat marks the stream it is given and would replace the mark that
+     * {@link EncodedImage} rewinds to. It also records read failures, which the decoder swallows
+     * and reports as an undecodable image.
+     */
+    private static class DecoderInputStream extends FilterInputStream {
+        private IOException mReadFailure;
+
+        private DecoderInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                throw recordFailure(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            try {
+                return super.read(buffer, offset, count);
+            } catch (IOException e) {
+                throw recordFailure(e);
+            }
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            try {
+                return super.skip(count);
+            } catch (IOException e) {
+                throw recordFailure(e);
+            }
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void mark(int readLimit) {
+        }
+
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+
+        private IOException recordFailure(IOException e) {
+            if (mReadFailure == null) {
+                mReadFailure = e;
+            }
+            return e;
+        }
+
+        /** Throws the first read failure, if there was one. */
+        public void throwIfReadFailed() throws BodyReadException {
+            if (mReadFailure != null) {
+                throw new BodyReadException(mReadFailure);
+            }
+        }
+    }
+
+    /**
+     * Thrown when the body of a streamed image could not be read, as opposed to decoded.
+     */
+    private static class BodyReadException extends IOException {
+        private BodyReadException(IOException cause) {
+            super(cause);
+        }
+    }
+
     @Override
     protected void deliverResponse(Bitmap response) {
         mListener.onResponse(response);
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.support.v4.util.LruCache;
+
+import com.android.volley.AsyncInitCache;
+import com.android.volley.Cache;
+import com.android.volley.StoppableCache;
+import com.android.volley.StreamingCache;
+
+import java.io.OutputStream;
+
+/**
+ * A cache that keeps recently used entries in memory in front of another cache, usually a
+ * {@link DiskBasedCache}, so that repeated requests don't go to disk.
+ *
+ * <p>Entries are handed out from memory as {@link Entry#copy() copies}, so that requests can't
+ * change each other's headers or TTLs. The copies share the results that requests parse from
+ * them and record with {@link Entry#putParsedResult(String, Object)}, so those are reused by
+ * later requests for as long as the entry stays in memory. See
+ * {@link com.android.volley.Request#getParsedResultKey()}.</p>
+ */
+public class LayeredCache implements StreamingCache, AsyncInitCache, StoppableCache {
+
+    /** Default size of the memory cache in bytes. */
+    public static final int DEFAULT_MEMORY_CACHE_BYTES = 1024 * 1024;
+
+    /** Fraction of the memory cache a single entry may take up. */
+    private static final int MAX_ENTRY_FRACTION = 8;
+
+    /** The cache behind the memory cache. */
+    private final Cache mCache;
+
+    /** Recently used entries, weighed by the size of their data. */
+    private final LruCache<String, Entry> mMemoryCache;
+
+    /** Largest entry kept in memory, in bytes. */
+    private final int mMaxEntryBytes;
+
+    /**
+     * Creates a cache that keeps recently used entries of the given cache in memory.
+     * @param cache The cache to put in front of
+     * @param memoryCacheBytes The size of the memory cache in bytes
+     */
+    public LayeredCache(Cache cache, int memoryCacheBytes) {
+        mCache = cache;
+        mMaxEntryBytes = memoryCacheBytes / MAX_ENTRY_FRACTION;
+        mMemoryCache = new LruCache<String, Entry>(memoryCacheBytes) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                // Count empty entries too, so that the number of entries stays bounded.
+                return Math.max(1, entry.getDataLength());
+            }
+        };
+    }
+
+    /**
+     * Creates a cache that keeps recently used entries of the given cache in memory, with the
+     * default memory cache size.
+     */
+    public LayeredCache(Cache cache) {
+        this(cache, DEFAULT_MEMORY_CACHE_BYTES);
+    }
+
+    @Override
+    public Entry get(String key) {
+        Entry entry = mMemoryCache.get(key);
+        if (entry != null) {
+            return entry.copy();
+        }
+        entry = mCache.get(key);
+        if (entry != null) {
+            putInMemory(key, entry);
+            return entry.copy();
+        }
+        return null;
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        mCache.put(key, entry);
+        // The caller keeps its entry, so the memory cache keeps a copy of its own.
+        putInMemory(key, entry.copy());
+    }
+
+    @Override
+    public void initialize() {
+        mCache.initialize();
+    }
+
+    /**
+     * Returns whether the cache behind this one can be used while it is initializing.
+     */
+    @Override
+    public boolean canServeWhileInitializing() {
+        return mCache instanceof AsyncInitCache
+                && ((AsyncInitCache) mCache).canServeWhileInitializing();
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        Entry entry = mMemoryCache.get(key);
+        if (entry != null) {
+            entry.softTtl = 0;
+            if (fullExpire) {
+                entry.ttl = 0;
+            }
+        }
+        mCache.invalidate(key, fullExpire);
+    }
+
+    @Override
+    public void remove(String key) {
+        mMemoryCache.remove(key);
+        mCache.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        mMemoryCache.evictAll();
+        mCache.clear();
+    }
+
+    /**
+     * Opens a writer on the cache behind the memory cache, if it is a {@link StreamingCache}.
+     * Committing it drops the entry from memory, as its data is only known to that cache.
+     */
+    @Override
+    public Writer openWriter(final String key, Entry entry) {
+        if (!(mCache instanceof StreamingCache)) {
+            return null;
+        }
+        final Writer writer = ((StreamingCache) mCache).openWriter(key, entry);
+        if (writer == null) {
+            return null;
+        }
+        return new Writer() {
+            @Override
+            public OutputStream getOutputStream() {
+                return writer.getOutputStream();
+            }
+
+            @Override
+            public void commit(Entry entry) {
+                mMemoryCache.remove(key);
+                writer.commit(entry);
+            }
+
+            @Override
+            public void abort() {
+                writer.abort();
+            }
+        };
+    }
+
+    /**
+     * Stops the threads of the cache behind the memory cache, if it is a {@link StoppableCache}.
+     */
+    @Override
+    public void stop() {
+        if (mCache instanceof StoppableCache) {
+            ((StoppableCache) mCache).stop();
+        }
+    }
+
+    /** Returns the number of gets served from memory. */
+    public int getMemoryHitCount() {
+        return mMemoryCache.hitCount();
+    }
+
+    /** Returns the number of gets that had to go to the cache behind the memory cache. */
+    public int getMemoryMissCount() {
+        return mMemoryCache.missCount();
+    }
+
+    private void putInMemory(String key, Entry entry) {
+        if (entry.getDataLength() <= mMaxEntryBytes) {
+            mMemoryCache.put(key, entry);
+        } else {
+            mMemoryCache.remove(key);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Evicts the least recently used entry first.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+    /** Keys in access order, least recently used first. */
+    private final Map<String, Long> mEntries = new LinkedHashMap<String, Long>(16, .75f, true);
+
+    @Override
+    public void onAdd(String key, long size) {
+        mEntries.put(key, size);
+    }
+
+    @Override
+    public void onAccess(String key) {
+        mEntries.get(key);
+    }
+
+    @Override
+    public void onRemove(String key) {
+        mEntries.remove(key);
+    }
+
+    @Override
+    public String nextVictim() {
+        return mEntries.isEmpty() ? null : mEntries.keySet().iterator().next();
+    }
+
+    @Override
+    public void clear() {
+        mEntries.clear();
+    }
+}
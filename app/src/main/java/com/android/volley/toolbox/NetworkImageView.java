@@ -21,6 +21,7 @@ import android.util.AttributeSet;
 import android.view.ViewGroup.LayoutParams;
 import android.widget.ImageView;
 
+import com.android.volley.Request.Priority;
 import com.android.volley.VolleyError;
 import com.android.volley.toolbox.ImageLoader.ImageContainer;
 import com.android.volley.toolbox.ImageLoader.ImageListener;
@@ -50,6 +51,12 @@ public class NetworkImageView extends OkulusImageView {
     /** Current ImageContainer. (either in-flight or finished) */
     private ImageContainer mImageContainer;
 
+    /** Priority of the image request for this view. */
+    private Priority mPriority = Priority.LOW;
+
+    /** Tag set on the image containers of this view. */
+    private Object mImageTag;
+
     public NetworkImageView(Context context) {
         this(context, null);
     }
@@ -81,6 +88,30 @@ public class NetworkImageView extends OkulusImageView {
         loadImageIfNecessary(false);
     }
 
+    /**
+     * Sets the priority of this view's image request, including one that is already in flight.
+     * For example, raise it for views that scroll into sight and lower it for views that scroll
+     * out of sight, so that visible images reach the network first.
+     */
+    public void setImagePriority(Priority priority) {
+        mPriority = priority;
+        if (mImageContainer != null) {
+            mImageContainer.setPriority(priority);
+        }
+    }
+
+    /**
+     * Sets a tag on this view's image requests, for use with
+     * {@link ImageLoader#setPriority(Object, Priority)} and
+     * {@link ImageLoader#cancelRequests(Object)}.
+     */
+    public void setImageTag(Object tag) {
+        mImageTag = tag;
+        if (mImageContainer != null) {
+            mImageContainer.setTag(tag);
+        }
+    }
+
     /**
      * Sets the default image resource ID to be used for this view until the attempt to load it
      * completes.
@@ -178,7 +209,8 @@ public class NetworkImageView extends OkulusImageView {
                             setImageResource(mDefaultImageId);
                         }
                     }
-                }, maxWidth, maxHeight);
+                }, maxWidth, maxHeight, mPriority);
+        newContainer.setTag(mImageTag);
 
         // update the ImageContainer to be the new bitmap container.
         mImageContainer = newContainer;
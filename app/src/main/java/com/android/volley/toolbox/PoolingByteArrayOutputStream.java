@@ -69,11 +69,17 @@ public class PoolingByteArrayOutputStream extends ByteArrayOutputStream {
      * Ensures there is enough space in the buffer for the given number of additional bytes.
      */
     private void expand(int i) {
+        if (buf == null) {
+            // The previous buffer was handed off by toByteArray().
+            buf = mPool.getBuf(Math.max(i, DEFAULT_SIZE));
+            return;
+        }
         /* Can the buffer handle @i more bytes, if not expand it */
         if (count + i <= buf.length) {
             return;
         }
-        byte[] newbuf = mPool.getBuf((count + i) * 2);
+        // The pool rounds buffers up to a power of two, so this still at least doubles the size.
+        byte[] newbuf = mPool.getBuf(count + i);
         System.arraycopy(buf, 0, newbuf, 0, count);
         mPool.returnBuf(buf);
         buf = newbuf;
@@ -90,4 +96,23 @@ public class PoolingByteArrayOutputStream extends ByteArrayOutputStream {
         expand(1);
         super.write(oneByte);
     }
+
+    /**
+     * Returns the bytes written to this stream. If they exactly fill the underlying buffer, the
+     * buffer itself is handed off instead of copied, and is no longer part of this stream or the
+     * pool; the stream is then empty.
+     */
+    @Override
+    public synchronized byte[] toByteArray() {
+        if (buf != null && count == buf.length) {
+            byte[] result = buf;
+            buf = null;
+            count = 0;
+            return result;
+        }
+        if (buf == null) {
+            return new byte[0];
+        }
+        return super.toByteArray();
+    }
 }
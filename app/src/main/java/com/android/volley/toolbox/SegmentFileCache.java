@@ -0,0 +1,925 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.android.volley.AsyncInitCache;
+import com.android.volley.StreamingCache;
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Cache implementation that packs entries into a few large segment files, rather than storing
+ * a file per entry like {@link DiskBasedCache}. This suits caches of many small entries, such as
+ * thumbnails, where opening and closing a file for every hit and put costs more than reading the
+ * data itself.
+ *
+ * <p>Entries are appended to the newest segment, and an in-memory index records where each one
+ * is. Hits are served with a single positional read from a segment that is kept open. Removing or
+ * replacing an entry appends a tombstone or a newer record and leaves the old record behind as
+ * garbage. Once there is enough garbage, the oldest segment is compacted in the background: its
+ * live entries are appended to the newest segment and it is deleted.</p>
+ *
+ * <p>The index is rebuilt by reading the record headers of every segment in
+ * {@link #initialize()}. Until that has finished, gets miss and puts are dropped rather than
+ * wait for it. Removals, including those implied by dropped puts, are applied once it has
+ * finished, so that no entry they were meant to remove is served afterwards.</p>
+ */
+public class SegmentFileCache implements StreamingCache, AsyncInitCache {
+
+    /** Default maximum size of the live entries in bytes. */
+    private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
+
+    /** Minimum size a segment grows to before a new one is started. */
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+
+    /** Size from which entries are memory-mapped rather than read onto the managed heap. */
+    private static final int MAP_THRESHOLD = 64 * 1024;
+
+    /** Magic numbers starting each record. */
+    private static final int PUT_MAGIC = 0x20141207;
+    private static final int REMOVE_MAGIC = 0x20141208;
+
+    /** Prefix of segment file names, which are followed by the segment id. */
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    /** The root directory to use for the cache. */
+    private final File mRootDirectory;
+
+    /** The maximum size of the live entries in bytes. */
+    private final int mMaxCacheSizeInBytes;
+
+    /** Size a segment grows to before a new one is started. */
+    private final int mSegmentSize;
+
+    /**
+     * Where each entry is, in access order. This and the byte counts of the segments are guarded
+     * by the cache itself.
+     */
+    private final LinkedHashMap<String, Location> mIndex =
+            new LinkedHashMap<String, Location>(16, .75f, true);
+
+    /** Total size of the live entries in bytes. */
+    private long mTotalSize = 0;
+
+    /**
+     * Segments by id, oldest first. Appending to a segment, and moving an entry between
+     * segments, is guarded by this lock, which is always taken before the cache's own lock.
+     */
+    private final TreeMap<Long, Segment> mSegments = new TreeMap<Long, Segment>();
+
+    /** The segment appended to. Guarded by {@link #mSegments}. */
+    private Segment mActiveSegment;
+
+    /**
+     * Guards the lifetime of segment files: reads hold the read lock, and closing a segment
+     * holds the write lock.
+     */
+    private final ReadWriteLock mSegmentLifetimeLock = new ReentrantReadWriteLock();
+
+    /** Whether {@link #initialize()} has finished. Only set while synchronized. */
+    private volatile boolean mInitialized = false;
+
+    /** Keys removed before {@link #initialize()} finished. Guarded by the cache. */
+    private final Set<String> mPendingRemovals = new HashSet<String>();
+
+    /** Whether a compaction thread is running. Guarded by the cache. */
+    private boolean mCompacting = false;
+
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+
+    /** A segment file. */
+    private static class Segment {
+        final long id;
+        final File file;
+        /** Size of the file, which is where the next record is appended. */
+        long size;
+        /** Size of the records in the file that are still live. */
+        long liveBytes;
+        /** The open file. Guarded by the segment. */
+        private FileChannel channel;
+        /** Whether the segment has been closed for good. Guarded by the segment. */
+        private boolean closed = false;
+
+        Segment(long id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.size = channel.size();
+        }
+
+        /**
+         * Returns the open file. A thread that is interrupted while reading or writing closes
+         * the channel for everyone, so a channel found closed is reopened, unless the segment
+         * itself has been closed.
+         */
+        synchronized FileChannel getChannel() throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (!channel.isOpen()) {
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            return channel;
+        }
+
+        /** Closes the segment for good. */
+        synchronized void close() {
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException ignored) { }
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+    }
+
+    /** Where an entry is stored. */
+    private static class Location {
+        final Segment segment;
+        /** Offset of the entry's data in the segment. */
+        final long dataOffset;
+        /** Size of the entry's whole record, counted as garbage once it is replaced. */
+        final long recordSize;
+        /** Metadata of the entry; its size is the size of the data. */
+        final CacheHeader header;
+        /** Whether this is still where the entry is. Guarded by the cache. */
+        boolean live = false;
+
+        Location(Segment segment, long dataOffset, long recordSize, CacheHeader header) {
+            this.segment = segment;
+            this.dataOffset = dataOffset;
+            this.recordSize = recordSize;
+            this.header = header;
+        }
+    }
+
+    /**
+     * Constructs an instance of the SegmentFileCache at the specified directory.
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the live entries in bytes. Garbage waiting
+     *     to be compacted may take up to half as much again.
+     */
+    public SegmentFileCache(File rootDirectory, int maxCacheSizeInBytes) {
+        mRootDirectory = rootDirectory;
+        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mSegmentSize = Math.max(MIN_SEGMENT_SIZE, maxCacheSizeInBytes / 8);
+    }
+
+    /**
+     * Constructs an instance of the SegmentFileCache at the specified directory using the
+     * default maximum cache size of 5MB.
+     */
+    public SegmentFileCache(File rootDirectory) {
+        this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
+    }
+
+    /**
+     * Rebuilds the index by reading the records of every segment, oldest first.
+     */
+    @Override
+    public void initialize() {
+        synchronized (mSegments) {
+            try {
+                if (!mRootDirectory.exists() && !mRootDirectory.mkdirs()) {
+                    VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+                    return;
+                }
+                long startTime = SystemClock.elapsedRealtime();
+                for (long id : listSegmentIds()) {
+                    try {
+                        Segment segment = new Segment(id, getSegmentFile(id));
+                        mSegments.put(id, segment);
+                        replay(segment);
+                    } catch (IOException e) {
+                        VolleyLog.d("Unable to open segment %d: %s", id, e.toString());
+                    }
+                }
+                if (VolleyLog.DEBUG) {
+                    VolleyLog.v("indexed %d entries in %d segments, %d ms", mIndex.size(),
+                            mSegments.size(), SystemClock.elapsedRealtime() - startTime);
+                }
+            } finally {
+                synchronized (this) {
+                    for (String key : mPendingRemovals) {
+                        removeAndRecord(key);
+                    }
+                    mPendingRemovals.clear();
+                    mInitialized = true;
+                }
+            }
+        }
+        requestCompaction();
+    }
+
+    /**
+     * Returns true; gets miss and puts are dropped while {@link #initialize()} is in progress.
+     */
+    @Override
+    public boolean canServeWhileInitializing() {
+        return true;
+    }
+
+    /**
+     * Returns the ids of the segments in the root directory, in ascending order.
+     */
+    private long[] listSegmentIds() {
+        String[] names = mRootDirectory.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] ids = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(SEGMENT_PREFIX)) {
+                try {
+                    ids[count++] = Long.parseLong(name.substring(SEGMENT_PREFIX.length()));
+                } catch (NumberFormatException ignored) { }
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Indexes the records of a segment. A segment that ends in a torn record, left by a crash
+     * while appending, is truncated to its last complete record.
+     */
+    private void replay(Segment segment) throws IOException {
+        CountingInputStream cis = new CountingInputStream(
+                new BufferedInputStream(new FileInputStream(segment.file)));
+        long fileSize = segment.getChannel().size();
+        long recordStart = 0;
+        try {
+            while (recordStart < fileSize) {
+                int magic = DiskBasedCache.readInt(cis);
+                if (magic == PUT_MAGIC) {
+                    long dataLength = DiskBasedCache.readLong(cis);
+                    CacheHeader header = CacheHeader.readHeader(cis);
+                    header.size = dataLength;
+                    long dataOffset = cis.count;
+                    if (dataOffset + dataLength > fileSize) {
+                        throw new EOFException();
+                    }
+                    skipFully(cis, dataLength);
+                    long recordSize = cis.count - recordStart;
+                    segment.size = cis.count;
+                    synchronized (this) {
+                        putLocation(header.key,
+                                new Location(segment, dataOffset, recordSize, header));
+                    }
+                } else if (magic == REMOVE_MAGIC) {
+                    String key = DiskBasedCache.readString(cis);
+                    segment.size = cis.count;
+                    synchronized (this) {
+                        removeLocation(key);
+                    }
+                } else {
+                    throw new IOException("Bad record at " + recordStart);
+                }
+                recordStart = cis.count;
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Truncating %s at %d: %s", segment.file, recordStart, e.toString());
+            segment.size = recordStart;
+            segment.getChannel().truncate(recordStart);
+        } finally {
+            cis.close();
+        }
+    }
+
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise.
+     */
+    @Override
+    public Entry get(String key) {
+        if (!mInitialized) {
+            return null;
+        }
+        Location location;
+        synchronized (this) {
+            location = mIndex.get(key);
+            if (location == null) {
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+        }
+
+        mSegmentLifetimeLock.readLock().lock();
+        try {
+            try {
+                return read(location);
+            } catch (ClosedChannelException e) {
+                if (e instanceof ClosedByInterruptException || location.segment.isClosed()) {
+                    throw e;
+                }
+                // Closed by another thread that was interrupted; read from the reopened file.
+                return read(location);
+            }
+        } catch (ClosedChannelException e) {
+            // Either this thread was interrupted, or the entry was moved by compaction since we
+            // looked it up.
+            return null;
+        } catch (IOException e) {
+            VolleyLog.d("Unable to read %s: %s", key, e.toString());
+        } finally {
+            mSegmentLifetimeLock.readLock().unlock();
+        }
+        synchronized (mSegments) {
+            synchronized (this) {
+                if (mIndex.get(key) == location) {
+                    removeAndRecord(key);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the data of an entry. Must be called holding the read lock of
+     * {@link #mSegmentLifetimeLock}.
+     */
+    private Entry read(Location location) throws IOException {
+        FileChannel channel = location.segment.getChannel();
+        long length = location.header.size;
+        if (length >= MAP_THRESHOLD) {
+            return location.header.toCacheEntry(channel.map(
+                    FileChannel.MapMode.READ_ONLY, location.dataOffset, length));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        readFully(channel, buffer, location.dataOffset);
+        return location.header.toCacheEntry(buffer.array());
+    }
+
+    /**
+     * Puts the entry with the specified key into the cache. Until {@link #initialize()} has
+     * finished, the entry is dropped instead, along with any older entry for the key.
+     */
+    @Override
+    public void put(String key, Entry entry) {
+        if (!mInitialized) {
+            VolleyLog.d("Not caching %s, the cache is still initializing", key);
+            remove(key);
+            return;
+        }
+        CacheHeader header = new CacheHeader(key, entry);
+        if (header.size > mMaxCacheSizeInBytes / 2) {
+            VolleyLog.d("Not caching %s, %d bytes is too large", key, header.size);
+            remove(key);
+            return;
+        }
+        ByteBuffer data;
+        if (entry.data != null) {
+            data = ByteBuffer.wrap(entry.data);
+        } else if (entry.buffer != null) {
+            data = entry.buffer.duplicate();
+        } else {
+            data = ByteBuffer.allocate(0);
+        }
+        try {
+            byte[] headerBytes = header.toBytes();
+            synchronized (mSegments) {
+                append(header, headerBytes, data);
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Unable to write %s: %s", key, e.toString());
+        }
+        requestCompaction();
+    }
+
+    /**
+     * Appends a record for an entry to the active segment and indexes it, evicting entries if
+     * the cache has outgrown its maximum size. Must be called holding {@link #mSegments}.
+     */
+    private void append(CacheHeader header, byte[] headerBytes, ByteBuffer data)
+            throws IOException {
+        Location location = appendRecord(header, headerBytes, data);
+        synchronized (this) {
+            putLocation(header.key, location);
+            while (mTotalSize > mMaxCacheSizeInBytes && !mIndex.isEmpty()) {
+                removeAndRecord(mIndex.keySet().iterator().next());
+            }
+        }
+    }
+
+    /**
+     * Appends a record for an entry to the active segment, without indexing it. Must be called
+     * holding {@link #mSegments}.
+     */
+    private Location appendRecord(CacheHeader header, byte[] headerBytes, ByteBuffer data)
+            throws IOException {
+        ByteArrayOutputStream prefix = new ByteArrayOutputStream(12);
+        DiskBasedCache.writeInt(prefix, PUT_MAGIC);
+        DiskBasedCache.writeLong(prefix, header.size);
+        ByteBuffer[] buffers = new ByteBuffer[] {
+                ByteBuffer.wrap(prefix.toByteArray()), ByteBuffer.wrap(headerBytes), data };
+        long recordSize = prefix.size() + headerBytes.length + data.remaining();
+
+        Segment segment = getSegmentForAppend(recordSize);
+        long start = segment.size;
+        long dataOffset = start + prefix.size() + headerBytes.length;
+        writeAt(segment, buffers);
+        return new Location(segment, dataOffset, recordSize, header);
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        if (!mInitialized) {
+            // The entry can't be read yet, so drop it instead.
+            remove(key);
+            return;
+        }
+        Entry entry = get(key);
+        if (entry != null) {
+            entry.softTtl = 0;
+            if (fullExpire) {
+                entry.ttl = 0;
+            }
+            put(key, entry);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        synchronized (this) {
+            if (!mInitialized) {
+                mPendingRemovals.add(key);
+                return;
+            }
+        }
+        synchronized (mSegments) {
+            synchronized (this) {
+                removeAndRecord(key);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (mSegments) {
+            mSegmentLifetimeLock.writeLock().lock();
+            try {
+                synchronized (this) {
+                    mIndex.clear();
+                    mTotalSize = 0;
+                }
+                for (Segment segment : mSegments.values()) {
+                    segment.close();
+                    segment.file.delete();
+                }
+                mSegments.clear();
+                mActiveSegment = null;
+            } finally {
+                mSegmentLifetimeLock.writeLock().unlock();
+            }
+        }
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /**
+     * Opens a writer that buffers the body in memory and puts the entry on commit. Bodies larger
+     * than a segment are not cached.
+     */
+    @Override
+    public Writer openWriter(final String key, Entry header) {
+        final BoundedOutputStream body = new BoundedOutputStream(mSegmentSize);
+        return new Writer() {
+            @Override
+            public OutputStream getOutputStream() {
+                return body;
+            }
+
+            @Override
+            public void commit(Entry entry) {
+                if (body.hasOverflowed()) {
+                    VolleyLog.d("Not caching %s, body is too large", key);
+                    return;
+                }
+                // A copy, as the caller may still be using its entry.
+                Entry copy = entry.copy();
+                copy.data = body.toByteArray();
+                copy.buffer = null;
+                put(key, copy);
+            }
+
+            @Override
+            public void abort() {
+                // Nothing was written to disk.
+            }
+        };
+    }
+
+    /** Returns the number of gets that found an entry. */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /** Returns the number of gets that didn't find an entry. */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /** Returns the total size of the live entries in bytes. */
+    public synchronized long getTotalSize() {
+        return mTotalSize;
+    }
+
+    /**
+     * Returns the total size of the segment files in bytes, including garbage that is yet to
+     * be compacted.
+     */
+    public long getDiskSize() {
+        synchronized (mSegments) {
+            long size = 0;
+            for (Segment segment : mSegments.values()) {
+                size += segment.size;
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Returns the segment to append a record of the given size to, starting a new one if the
+     * active one is full. Must be called holding {@link #mSegments}.
+     */
+    private Segment getSegmentForAppend(long recordSize) throws IOException {
+        if (mActiveSegment == null && !mSegments.isEmpty()) {
+            mActiveSegment = mSegments.lastEntry().getValue();
+        }
+        if (mActiveSegment == null
+                || (mActiveSegment.size > 0 && mActiveSegment.size + recordSize > mSegmentSize)) {
+            long id = mSegments.isEmpty() ? 0 : mSegments.lastKey() + 1;
+            if (!mRootDirectory.exists()) {
+                mRootDirectory.mkdirs();
+            }
+            mActiveSegment = new Segment(id, getSegmentFile(id));
+            mSegments.put(id, mActiveSegment);
+        }
+        return mActiveSegment;
+    }
+
+    /**
+     * Appends the given buffers to a segment. If the write fails, the segment is truncated back
+     * to where it was. Must be called holding {@link #mSegments}.
+     */
+    private static void writeAt(Segment segment, ByteBuffer[] buffers) throws IOException {
+        long start = segment.size;
+        FileChannel channel = segment.getChannel();
+        try {
+            channel.position(start);
+            while (hasRemaining(buffers)) {
+                channel.write(buffers);
+            }
+            segment.size = channel.position();
+        } catch (IOException e) {
+            try {
+                segment.getChannel().truncate(start);
+            } catch (IOException ignored) {
+                // The next append overwrites the torn record anyway, as it starts at the old size.
+            }
+            throw e;
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Indexes the location of an entry, counting any record it replaces as garbage. Must be
+     * called while synchronized.
+     */
+    private void putLocation(String key, Location location) {
+        Location old = mIndex.put(key, location);
+        if (old != null) {
+            mTotalSize -= old.header.size;
+            old.segment.liveBytes -= old.recordSize;
+            old.live = false;
+        }
+        mTotalSize += location.header.size;
+        location.segment.liveBytes += location.recordSize;
+        location.live = true;
+    }
+
+    /**
+     * Removes an entry from the index, counting its record as garbage. Must be called while
+     * synchronized.
+     */
+    private Location removeLocation(String key) {
+        Location old = mIndex.remove(key);
+        if (old != null) {
+            mTotalSize -= old.header.size;
+            old.segment.liveBytes -= old.recordSize;
+            old.live = false;
+        }
+        return old;
+    }
+
+    /**
+     * Removes an entry and appends a tombstone, so that it stays removed when the index is
+     * rebuilt. Must be called holding {@link #mSegments} and synchronized.
+     */
+    private void removeAndRecord(String key) {
+        if (removeLocation(key) == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DiskBasedCache.writeInt(record, REMOVE_MAGIC);
+            DiskBasedCache.writeString(record, key);
+            Segment segment = getSegmentForAppend(record.size());
+            writeAt(segment, new ByteBuffer[] { ByteBuffer.wrap(record.toByteArray()) });
+        } catch (IOException e) {
+            VolleyLog.d("Unable to record removal of %s: %s", key, e.toString());
+        }
+    }
+
+    /**
+     * Starts compacting in the background if the garbage in the segments has grown to half the
+     * maximum size of the cache.
+     */
+    private void requestCompaction() {
+        synchronized (mSegments) {
+            synchronized (this) {
+                if (mCompacting || !isCompactionNeeded()) {
+                    return;
+                }
+                mCompacting = true;
+            }
+        }
+        Thread compactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                compact();
+            }
+        }, "VolleyCacheCompactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Returns true if there's enough garbage to compact the oldest segment. Must be called
+     * holding {@link #mSegments} and synchronized.
+     */
+    private boolean isCompactionNeeded() {
+        if (mSegments.size() < 2) {
+            return false;
+        }
+        long garbage = 0;
+        for (Segment segment : mSegments.values()) {
+            garbage += segment.size - segment.liveBytes;
+        }
+        return garbage >= Math.max(mMaxCacheSizeInBytes / 2, mSegmentSize);
+    }
+
+    /**
+     * Compacts the oldest segments until there isn't enough garbage left to bother. Only the
+     * oldest segment is ever deleted, so that no tombstone is deleted while an older record it
+     * hides still exists.
+     */
+    private void compact() {
+        long startTime = SystemClock.elapsedRealtime();
+        int compacted = 0;
+        while (true) {
+            Segment oldest;
+            List<Map.Entry<String, Location>> liveEntries =
+                    new ArrayList<Map.Entry<String, Location>>();
+            synchronized (mSegments) {
+                synchronized (this) {
+                    if (!isCompactionNeeded()) {
+                        mCompacting = false;
+                        break;
+                    }
+                    oldest = mSegments.firstEntry().getValue();
+                    for (Map.Entry<String, Location> entry : mIndex.entrySet()) {
+                        if (entry.getValue().segment == oldest) {
+                            liveEntries.add(entry);
+                        }
+                    }
+                }
+            }
+
+            // Move the live entries one at a time, so puts can get in between.
+            for (Map.Entry<String, Location> entry : liveEntries) {
+                synchronized (mSegments) {
+                    moveEntry(entry, oldest);
+                }
+            }
+
+            synchronized (mSegments) {
+                synchronized (this) {
+                    if (oldest.liveBytes > 0 || oldest == mActiveSegment) {
+                        // Written to since we looked; try again later.
+                        mCompacting = false;
+                        break;
+                    }
+                    mSegments.remove(oldest.id);
+                }
+                mSegmentLifetimeLock.writeLock().lock();
+                try {
+                    oldest.close();
+                } finally {
+                    mSegmentLifetimeLock.writeLock().unlock();
+                }
+                oldest.file.delete();
+            }
+            compacted++;
+        }
+
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("compacted %d segments, %d ms", compacted,
+                    SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /**
+     * Re-appends an entry if it is still stored in the given segment, keeping its place in the
+     * access order. Must be called holding {@link #mSegments}.
+     * @param indexEntry The entry of the index, which stays valid for as long as the key is
+     *     cached
+     */
+    private void moveEntry(Map.Entry<String, Location> indexEntry, Segment from) {
+        Location location;
+        synchronized (this) {
+            location = indexEntry.getValue();
+            if (!location.live || location.segment != from) {
+                return;
+            }
+        }
+        String key = location.header.key;
+        try {
+            ByteBuffer data = ByteBuffer.allocate((int) location.header.size);
+            readFully(from.getChannel(), data, location.dataOffset);
+            data.flip();
+            Location moved = appendRecord(location.header, location.header.toBytes(), data);
+            synchronized (this) {
+                if (location.live) {
+                    // Replaced in place, rather than put, so that it isn't made most recent.
+                    indexEntry.setValue(moved);
+                    location.live = false;
+                    from.liveBytes -= location.recordSize;
+                    moved.live = true;
+                    moved.segment.liveBytes += moved.recordSize;
+                }
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Unable to move %s: %s", key, e.toString());
+            synchronized (this) {
+                if (location.live) {
+                    removeAndRecord(key);
+                }
+            }
+        }
+    }
+
+    private File getSegmentFile(long id) {
+        return new File(mRootDirectory, SEGMENT_PREFIX + id);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static void skipFully(InputStream is, long count) throws IOException {
+        while (count > 0) {
+            long skipped = is.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Counts the bytes read or skipped, which is the position in the underlying file.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) {
+                count++;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int result = super.read(buffer, offset, length);
+            if (result != -1) {
+                count += result;
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long length) throws IOException {
+            long result = super.skip(length);
+            count += result;
+            return result;
+        }
+    }
+
+    /**
+     * Buffers what is written to it, until it has been written more than a limit.
+     */
+    private static class BoundedOutputStream extends ByteArrayOutputStream {
+        private final int mLimit;
+        private boolean mOverflowed = false;
+
+        private BoundedOutputStream(int limit) {
+            mLimit = limit;
+        }
+
+        @Override
+        public synchronized void write(int oneByte) {
+            if (!mOverflowed && !checkOverflow(1)) {
+                super.write(oneByte);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] buffer, int offset, int length) {
+            if (!mOverflowed && !checkOverflow(length)) {
+                super.write(buffer, offset, length);
+            }
+        }
+
+        public synchronized boolean hasOverflowed() {
+            return mOverflowed;
+        }
+
+        private boolean checkOverflow(int length) {
+            if (count + length > mLimit) {
+                mOverflowed = true;
+                // Let go of what was buffered so far.
+                buf = new byte[0];
+                count = 0;
+            }
+            return mOverflowed;
+        }
+    }
+}
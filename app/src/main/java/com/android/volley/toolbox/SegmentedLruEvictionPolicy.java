@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A segmented LRU policy, which protects entries that have been read more than once from being
+ * flushed out by entries that are only read once, such as the images of a long feed scrolled
+ * through a single time.
+ *
+ * <p>New entries start out on probation. An entry on probation that is read again is moved to
+ * the protected segment. The protected segment is limited to a fraction of the total size;
+ * when it grows past that, its least recently used entries are moved back to probation.
+ * Entries are evicted from probation first, least recently used first.</p>
+ */
+public class SegmentedLruEvictionPolicy implements EvictionPolicy {
+    /** Default fraction of the total size that the protected segment may hold. */
+    public static final float DEFAULT_PROTECTED_FRACTION = 0.8f;
+
+    private final Map<String, Long> mProbation = new LinkedHashMap<String, Long>(16, .75f, true);
+    private final Map<String, Long> mProtected = new LinkedHashMap<String, Long>(16, .75f, true);
+
+    private final float mProtectedFraction;
+
+    private long mProbationBytes = 0;
+    private long mProtectedBytes = 0;
+
+    /**
+     * @param protectedFraction The fraction of the total size the protected segment may hold
+     */
+    public SegmentedLruEvictionPolicy(float protectedFraction) {
+        mProtectedFraction = protectedFraction;
+    }
+
+    public SegmentedLruEvictionPolicy() {
+        this(DEFAULT_PROTECTED_FRACTION);
+    }
+
+    @Override
+    public void onAdd(String key, long size) {
+        Long oldSize = mProtected.remove(key);
+        if (oldSize != null) {
+            // A refresh of a protected entry stays protected.
+            mProtectedBytes -= oldSize;
+            mProtected.put(key, size);
+            mProtectedBytes += size;
+            rebalance();
+            return;
+        }
+        oldSize = mProbation.remove(key);
+        if (oldSize != null) {
+            mProbationBytes -= oldSize;
+        }
+        mProbation.put(key, size);
+        mProbationBytes += size;
+    }
+
+    @Override
+    public void onAccess(String key) {
+        if (mProtected.get(key) != null) {
+            return;
+        }
+        Long size = mProbation.remove(key);
+        if (size != null) {
+            mProbationBytes -= size;
+            mProtected.put(key, size);
+            mProtectedBytes += size;
+            rebalance();
+        }
+    }
+
+    @Override
+    public void onRemove(String key) {
+        Long size = mProbation.remove(key);
+        if (size != null) {
+            mProbationBytes -= size;
+            return;
+        }
+        size = mProtected.remove(key);
+        if (size != null) {
+            mProtectedBytes -= size;
+        }
+    }
+
+    @Override
+    public String nextVictim() {
+        if (!mProbation.isEmpty()) {
+            return mProbation.keySet().iterator().next();
+        }
+        return mProtected.isEmpty() ? null : mProtected.keySet().iterator().next();
+    }
+
+    @Override
+    public void clear() {
+        mProbation.clear();
+        mProtected.clear();
+        mProbationBytes = 0;
+        mProtectedBytes = 0;
+    }
+
+    /**
+     * Moves the least recently used protected entries back to probation until the protected
+     * segment fits its share of the total size.
+     */
+    private void rebalance() {
+        long maxProtectedBytes = (long) ((mProbationBytes + mProtectedBytes) * mProtectedFraction);
+        Iterator<Map.Entry<String, Long>> iterator = mProtected.entrySet().iterator();
+        while (mProtectedBytes > maxProtectedBytes && mProtected.size() > 1) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            mProtectedBytes -= eldest.getValue();
+            mProbation.put(eldest.getKey(), eldest.getValue());
+            mProbationBytes += eldest.getValue();
+        }
+    }
+}
@@ -60,6 +60,12 @@ public class StringRequest extends Request<String> {
         mListener.onResponse(response);
     }
 
+    @Override
+    public String getParsedResultKey() {
+        // Strings are immutable, and every StringRequest parses the same way.
+        return getClass().getName();
+    }
+
     @Override
     protected Response<String> parseNetworkResponse(NetworkResponse response) {
         String parsed;
@@ -22,6 +22,7 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.http.AndroidHttpClient;
 import android.os.Build;
 
+import com.android.volley.Cache;
 import com.android.volley.Network;
 import com.android.volley.RequestQueue;
 
@@ -62,7 +63,8 @@ public class Volley {
 
         Network network = new BasicNetwork(stack);
 
-        RequestQueue queue = new RequestQueue(new DiskBasedCache(cacheDir), network);
+        Cache cache = new LayeredCache(new WriteBehindCache(new DiskBasedCache(cacheDir)));
+        RequestQueue queue = new RequestQueue(cache, network);
         queue.start();
 
         return queue;
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.android.volley.AsyncInitCache;
+import com.android.volley.Cache;
+import com.android.volley.Histogram;
+import com.android.volley.StoppableCache;
+import com.android.volley.StreamingCache;
+import com.android.volley.VolleyLog;
+
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache that queues puts and writes them to another cache on a background thread, so that
+ * network dispatchers can deliver responses without waiting for the disk.
+ *
+ * <p>Entries waiting to be written are served from memory. A put of a key that is still waiting
+ * replaces the waiting entry instead of queueing a second write. Once the waiting entries add up
+ * to the maximum number of bytes, puts block until the writer has caught up.</p>
+ */
+public class WriteBehindCache implements StreamingCache, AsyncInitCache, StoppableCache {
+
+    /** Default maximum size of the entries waiting to be written, in bytes. */
+    public static final int DEFAULT_MAX_PENDING_BYTES = 2 * 1024 * 1024;
+
+    /** The cache entries are written to. */
+    private final Cache mCache;
+
+    /** The maximum size of the entries waiting to be written, in bytes. */
+    private final int mMaxPendingBytes;
+
+    /** Entries waiting to be written, in the order they were first put. Guarded by this. */
+    private final Map<String, PendingEntry> mPending = new LinkedHashMap<String, PendingEntry>();
+
+    /** Entries being written by the writer thread. Guarded by this. */
+    private final Map<String, PendingEntry> mWriting = new HashMap<String, PendingEntry>();
+
+    /** Total size of the data of {@link #mPending}. Guarded by this. */
+    private long mPendingBytes = 0;
+
+    /** Time from put until written, in milliseconds. */
+    private final Histogram mWriteLatencies = new Histogram();
+
+    /** Time taken by the underlying cache to write an entry, in milliseconds. */
+    private final Histogram mWriteTimes = new Histogram();
+
+    /** Number of puts that had to wait for the writer to catch up. */
+    private int mBlockedPuts = 0;
+
+    /**
+     * The writer thread, started by the first put, or null if it isn't running or has been told
+     * to stop. Guarded by this.
+     */
+    private Thread mWriter;
+
+    private static class PendingEntry {
+        final Entry entry;
+        final int size;
+        final long enqueuedAtMs;
+
+        PendingEntry(Entry entry, long enqueuedAtMs) {
+            this.entry = entry;
+            this.size = entry.getDataLength();
+            this.enqueuedAtMs = enqueuedAtMs;
+        }
+    }
+
+    /**
+     * Creates a cache that writes to the given cache in the background.
+     * @param cache The cache to write to
+     * @param maxPendingBytes The maximum size of the entries waiting to be written, after which
+     *     puts block
+     */
+    public WriteBehindCache(Cache cache, int maxPendingBytes) {
+        mCache = cache;
+        mMaxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Creates a cache that writes to the given cache in the background, with the default
+     * maximum of pending bytes.
+     */
+    public WriteBehindCache(Cache cache) {
+        this(cache, DEFAULT_MAX_PENDING_BYTES);
+    }
+
+    @Override
+    public Entry get(String key) {
+        synchronized (this) {
+            PendingEntry pending = mPending.get(key);
+            if (pending == null) {
+                pending = mWriting.get(key);
+            }
+            if (pending != null) {
+                // A copy, as the entry is still to be written and callers may modify theirs.
+                return pending.entry.copy();
+            }
+        }
+        return mCache.get(key);
+    }
+
+    /**
+     * Queues the entry to be written, blocking if too many bytes are waiting already. A put
+     * that is interrupted while blocked is dropped.
+     */
+    @Override
+    public void put(String key, Entry entry) {
+        PendingEntry pending = new PendingEntry(entry, SystemClock.elapsedRealtime());
+        synchronized (this) {
+            PendingEntry previous = mPending.get(key);
+            long previousSize = previous != null ? previous.size : 0;
+            boolean blocked = false;
+            while (!mPending.isEmpty()
+                    && mPendingBytes - previousSize + pending.size > mMaxPendingBytes) {
+                blocked = true;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                // The writer may have taken the previous entry in the meantime.
+                previous = mPending.get(key);
+                previousSize = previous != null ? previous.size : 0;
+            }
+            if (blocked) {
+                mBlockedPuts++;
+            }
+            if (previous != null) {
+                // Coalesce with the waiting write, keeping its place in the queue.
+                mPendingBytes -= previous.size;
+            }
+            mPending.put(key, pending);
+            mPendingBytes += pending.size;
+            startWriter();
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void initialize() {
+        mCache.initialize();
+    }
+
+    /**
+     * Returns whether the cache behind this one can be used while it is initializing.
+     */
+    @Override
+    public boolean canServeWhileInitializing() {
+        return mCache instanceof AsyncInitCache
+                && ((AsyncInitCache) mCache).canServeWhileInitializing();
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        synchronized (this) {
+            PendingEntry pending = mPending.get(key);
+            if (pending != null) {
+                pending.entry.softTtl = 0;
+                if (fullExpire) {
+                    pending.entry.ttl = 0;
+                }
+                return;
+            }
+            awaitWrite(key);
+        }
+        mCache.invalidate(key, fullExpire);
+    }
+
+    @Override
+    public void remove(String key) {
+        synchronized (this) {
+            PendingEntry pending = mPending.remove(key);
+            if (pending != null) {
+                mPendingBytes -= pending.size;
+                notifyAll();
+            }
+            awaitWrite(key);
+        }
+        mCache.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        synchronized (this) {
+            mPending.clear();
+            mPendingBytes = 0;
+            notifyAll();
+            while (!mWriting.isEmpty()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        mCache.clear();
+    }
+
+    /**
+     * Opens a writer on the underlying cache, if it is a {@link StreamingCache}. Streamed entries
+     * are written by the caller, as the body is already being written while it is received;
+     * committing one drops any older put of the same key that is still waiting.
+     */
+    @Override
+    public Writer openWriter(final String key, Entry entry) {
+        if (!(mCache instanceof StreamingCache)) {
+            return null;
+        }
+        final Writer writer = ((StreamingCache) mCache).openWriter(key, entry);
+        if (writer == null) {
+            return null;
+        }
+        return new Writer() {
+            @Override
+            public OutputStream getOutputStream() {
+                return writer.getOutputStream();
+            }
+
+            @Override
+            public void commit(Entry entry) {
+                synchronized (WriteBehindCache.this) {
+                    PendingEntry pending = mPending.remove(key);
+                    if (pending != null) {
+                        mPendingBytes -= pending.size;
+                        WriteBehindCache.this.notifyAll();
+                    }
+                    awaitWrite(key);
+                }
+                writer.commit(entry);
+            }
+
+            @Override
+            public void abort() {
+                writer.abort();
+            }
+        };
+    }
+
+    /**
+     * Blocks until every entry that was waiting to be written has been written.
+     */
+    public synchronized void flush() throws InterruptedException {
+        while (!mPending.isEmpty() || !mWriting.isEmpty()) {
+            wait();
+        }
+    }
+
+    /**
+     * Stops the writer thread once it has written every entry that is waiting. The cache remains
+     * usable; the thread is started again by the next put.
+     */
+    @Override
+    public synchronized void stop() {
+        mWriter = null;
+        notifyAll();
+    }
+
+    /** Returns the number of entries waiting to be written. */
+    public synchronized int getQueueDepth() {
+        return mPending.size();
+    }
+
+    /** Returns the total size of the entries waiting to be written, in bytes. */
+    public synchronized long getPendingBytes() {
+        return mPendingBytes;
+    }
+
+    /** Returns the number of puts that had to wait for the writer to catch up. */
+    public synchronized int getBlockedPutCount() {
+        return mBlockedPuts;
+    }
+
+    /**
+     * Returns the distribution of time from put until the entry was written, in milliseconds.
+     */
+    public Histogram getWriteLatencies() {
+        return mWriteLatencies;
+    }
+
+    /**
+     * Returns the distribution of time the underlying cache took to write an entry, in
+     * milliseconds.
+     */
+    public Histogram getWriteTimes() {
+        return mWriteTimes;
+    }
+
+    /**
+     * Waits until the writer isn't writing the given key. Must be called while synchronized.
+     */
+    private void awaitWrite(String key) {
+        while (mWriting.containsKey(key)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Starts the writer thread if it isn't running. A writer that has been told to stop but is
+     * still writing hands over to the new one. Must be called while synchronized.
+     */
+    private void startWriter() {
+        if (mWriter != null) {
+            return;
+        }
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                writeLoop();
+            }
+        }, "VolleyCacheWriter");
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /**
+     * Writes waiting entries until {@link #stop()} is called and none are left, or another
+     * writer has been started in the meantime.
+     */
+    private void writeLoop() {
+        Thread self = Thread.currentThread();
+        while (true) {
+            String key;
+            PendingEntry pending;
+            synchronized (this) {
+                // Only one writer writes at a time, so that puts of a key are written in order.
+                while ((mPending.isEmpty() || !mWriting.isEmpty())
+                        && (mWriter == self || mWriter == null)) {
+                    if (mWriter == null && mPending.isEmpty()) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Only stop() ends the thread.
+                    }
+                }
+                if (mWriter != self && mWriter != null) {
+                    // Stopped, and another writer has been started since.
+                    return;
+                }
+                Iterator<Map.Entry<String, PendingEntry>> iterator =
+                        mPending.entrySet().iterator();
+                Map.Entry<String, PendingEntry> next = iterator.next();
+                iterator.remove();
+                key = next.getKey();
+                pending = next.getValue();
+                mPendingBytes -= pending.size;
+                mWriting.put(key, pending);
+                notifyAll();
+            }
+
+            long startTimeMs = SystemClock.elapsedRealtime();
+            try {
+                mCache.put(key, pending.entry);
+            } catch (RuntimeException e) {
+                VolleyLog.e(e, "Failed to write cache entry for key=%s", key);
+            }
+            long endTimeMs = SystemClock.elapsedRealtime();
+            mWriteTimes.record(endTimeMs - startTimeMs);
+            mWriteLatencies.record(endTimeMs - pending.enqueuedAtMs);
+
+            synchronized (this) {
+                mWriting.remove(key);
+                notifyAll();
+            }
+        }
+    }
+}
@@ -1,10 +1,9 @@
 package com.vinaysshenoy.okulusdemo;
 
 import android.app.Application;
-import android.graphics.Bitmap;
-import android.support.v4.util.LruCache;
 
 import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.BitmapLruCache;
 import com.android.volley.toolbox.ImageLoader;
 import com.android.volley.toolbox.Volley;
 import com.nostra13.universalimageloader.cache.disc.impl.UnlimitedDiscCache;
@@ -20,6 +19,8 @@ public class DemoApplication extends Application {
 
     private RequestQueue mRequestQueue;
 
+    private BitmapLruCache mImageCache;
+
     private ImageLoader mImageLoader;
 
     @Override
@@ -27,20 +28,8 @@ public class DemoApplication extends Application {
         super.onCreate();
 
         mRequestQueue = Volley.newRequestQueue(this);
-        mImageLoader = new ImageLoader(mRequestQueue, new ImageLoader.ImageCache() {
-            private final LruCache<String, Bitmap>
-                    cache = new LruCache<>(20);
-
-            @Override
-            public Bitmap getBitmap(String url) {
-                return cache.get(url);
-            }
-
-            @Override
-            public void putBitmap(String url, Bitmap bitmap) {
-                cache.put(url, bitmap);
-            }
-        });
+        mImageCache = new BitmapLruCache(this);
+        mImageLoader = new ImageLoader(mRequestQueue, mImageCache);
 
         final File cacheDirectory = StorageUtils.getCacheDirectory(this);
         final ImageLoaderConfiguration config = new ImageLoaderConfiguration.Builder(this)
@@ -49,6 +38,12 @@ public class DemoApplication extends Application {
         com.nostra13.universalimageloader.core.ImageLoader.getInstance().init(config);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mImageCache.trimMemory(level);
+    }
+
     public RequestQueue getRequestQueue() {
         return mRequestQueue;
     }